@@ -23,18 +23,31 @@ import android.widget.Toast;
 
 import com.img.crop.core.BitmapTileProvider;
 import com.img.crop.view.CropView;
+import com.img.crop.core.ImageSession;
+import com.img.crop.core.TileBitmapPool;
+import com.img.crop.core.TileImageView;
+import com.img.crop.core.TileCalibration;
+import com.img.crop.core.TileDiskCache;
 import com.img.crop.core.TileImageViewAdapter;
 import com.img.crop.glsrender.gl11.BitmapScreenNail;
 import com.img.crop.thdpool.Future;
 import com.img.crop.thdpool.FutureListener;
 import com.img.crop.thdpool.ThreadPool;
+import com.img.crop.utils.BitmapPool;
 import com.img.crop.utils.BitmapUtils;
 import com.img.crop.utils.CropBusiness;
+import com.img.crop.utils.JpegCropTranscoder;
+import com.img.crop.utils.LargeImageRequest;
 import com.img.crop.utils.LocalImageRequest;
 import com.img.crop.utils.SynchronizedHandler;
 import com.img.crop.utils.Utils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /*
  * Copyright (C) 2017
@@ -93,6 +106,14 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
      * SD卡不可用
      */
     private static final int MSG_SDCARD_NOT_AVAILABLE = 6;
+    /**
+     * EXIF缩略图占位
+     */
+    private static final int MSG_PREVIEW = 7;
+    /**
+     * 图片已经被其他界面加载过(ImageSession)
+     */
+    private static final int MSG_IMAGE_SESSION = 8;
 
 
     // crop aspect
@@ -106,6 +127,9 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
     private static final int ASPECT_CUSTOMIZE = 7;
 
     private static final int BACKUP_PIXEL_COUNT = 480000; // around 800x600
+    // A JPEG crop whose output bitmap would take more than 1/STREAMING_HEAP_FRACTION
+    // of the heap is encoded in strips instead, see CropBusiness.drawInStrips().
+    private static final int STREAMING_HEAP_FRACTION = 4;
 
     private static final String KEY_STATE = "state";
 
@@ -141,14 +165,21 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
     private BitmapRegionDecoder mRegionDecoder;
     private boolean mUseRegionDecoder = false;
     private BitmapScreenNail mBitmapScreenNail;
+    private TileImageViewAdapter mAdapter;
+    // Holds the decoders and the screennail of a large image.
+    private ImageSession mSession;
+    // The EXIF thumbnail shown until the screennail is decoded.
+    private BitmapScreenNail mPreviewScreenNail;
+    private TileImageViewAdapter mPreviewAdapter;
 
     private ProgressHUD mProgressDialog;
-    private Future<BitmapRegionDecoder> mLoadTask;
+    private Future<LargeImageRequest.Result> mLoadTask;
     private Future<Bitmap> mLoadBitmapTask;
     private Future<Intent> mSaveTask;
 
     private int mCroppedWidth = 0;
     private int mCroppedHeight = 0;
+    private float mCropScale = 1f;
     private Rect mSrcRect = new Rect();
     private Rect mDestRect = new Rect();
 
@@ -199,7 +230,7 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
         super.onPause();
 
         mCropView.onPause();
-        Future<BitmapRegionDecoder> loadTask = mLoadTask;
+        Future<LargeImageRequest.Result> loadTask = mLoadTask;
         if (loadTask != null && !loadTask.isDone()) {
             // load in progress, try to cancel it
             loadTask.cancel();
@@ -228,10 +259,22 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mAdapter != null) {
+            mAdapter.clear();
+            if (mSession != null) mSession.detach(mAdapter);
+            mAdapter = null;
+        }
         if (mBitmapScreenNail != null) {
             mBitmapScreenNail.recycle();
             mBitmapScreenNail = null;
         }
+        releasePreview();
+        if (mSession != null) {
+            // The screennail belongs to the session.
+            mSession.release();
+            mSession = null;
+            mBitmap = null;
+        }
     }
 
     /**
@@ -387,7 +430,14 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
         switch (message.what) {
             case MSG_LARGE_BITMAP:
                 dismissLoadingProgressDialog();
-                onBitmapRegionDecoderAvailable((BitmapRegionDecoder) message.obj);
+                onBitmapRegionDecoderAvailable((LargeImageRequest.Result) message.obj);
+                break;
+            case MSG_IMAGE_SESSION:
+                onImageSessionAvailable((ImageSession) message.obj);
+                break;
+            case MSG_PREVIEW:
+                dismissLoadingProgressDialog();
+                onPreviewAvailable((Bitmap) message.obj, message.arg1, message.arg2);
                 break;
             case MSG_BITMAP:
                 dismissLoadingProgressDialog();
@@ -424,30 +474,36 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
             return;
         }
 
-        showLoadingProgressDialog();
         boolean supportedByBitmapRegionDecoder = CropBusiness.isSupportRegionDecoder(mMediaItem.filePath);
+        if (supportedByBitmapRegionDecoder) {
+            // 其他界面已经加载了这张图，直接使用
+            ImageSession session = ImageSession.acquire(mMediaItem.filePath);
+            if (session != null) {
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_IMAGE_SESSION, session));
+                return;
+            }
+        }
+
+        showLoadingProgressDialog();
         if (supportedByBitmapRegionDecoder) {
             mLoadTask = ThreadPool.getInstance().submit(
-                    new ThreadPool.Job<BitmapRegionDecoder>() {
-                        @Override
-                        public BitmapRegionDecoder run(ThreadPool.JobContext jc) {
-                            try {
-                                return BitmapRegionDecoder.newInstance(mMediaItem.filePath, false);
-                            } catch (Throwable t) {
-                                Log.w(TAG, t);
-                                return null;
-                            }
-                        }
-                    },
-                    new FutureListener<BitmapRegionDecoder>() {
-                        public void onFutureDone(Future<BitmapRegionDecoder> future) {
+                    new LargeImageRequest(mMediaItem.filePath, BACKUP_PIXEL_COUNT,
+                            new LargeImageRequest.PreviewListener() {
+                                @Override
+                                public void onPreviewAvailable(Bitmap preview, int width, int height) {
+                                    mHandler.sendMessage(mHandler.obtainMessage(
+                                            MSG_PREVIEW, width, height, preview));
+                                }
+                            }),
+                    new FutureListener<LargeImageRequest.Result>() {
+                        public void onFutureDone(Future<LargeImageRequest.Result> future) {
                             mLoadTask = null;
-                            BitmapRegionDecoder decoder = future.get();
+                            LargeImageRequest.Result result = future.get();
                             if (future.isCancelled()) {
-                                if (decoder != null) decoder.recycle();
+                                if (result != null) result.recycle();
                                 return;
                             }
-                            mHandler.sendMessage(mHandler.obtainMessage(MSG_LARGE_BITMAP, decoder));
+                            mHandler.sendMessage(mHandler.obtainMessage(MSG_LARGE_BITMAP, result));
                         }
                     });
         } else {
@@ -472,36 +528,84 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
         }
     }
 
+    /**
+     * EXIF缩略图回调，在screennail解码完成之前作为占位图显示
+     *
+     * @param preview
+     * @param width   原图宽度
+     * @param height  原图高度
+     */
+    private void onPreviewAvailable(Bitmap preview, int width, int height) {
+        if (mState != STATE_INIT || mPreviewScreenNail != null) {
+            preview.recycle();
+            return;
+        }
+        mPreviewScreenNail = new BitmapScreenNail(preview);
+        mPreviewAdapter = new TileImageViewAdapter();
+        mPreviewAdapter.setScreenNail(mPreviewScreenNail, width, height);
+        mCropView.setDataModel(mPreviewAdapter, mMediaItem.getRotation());
+    }
+
+    private void releasePreview() {
+        if (mPreviewAdapter != null) {
+            mPreviewAdapter.clear();
+            mPreviewAdapter = null;
+        }
+        if (mPreviewScreenNail != null) {
+            mPreviewScreenNail.recycle();
+            mPreviewScreenNail = null;
+        }
+    }
+
     /**
      * 加载图片回调（区域解码）
      *
-     * @param regionDecoder
+     * @param result 区域解码器和解码好的screennail
      */
-    private void onBitmapRegionDecoderAvailable(BitmapRegionDecoder regionDecoder) {
-        if (regionDecoder == null) {
+    private void onBitmapRegionDecoderAvailable(LargeImageRequest.Result result) {
+        if (result == null) {
             Toast.makeText(this, R.string.load_bmp_failure, Toast.LENGTH_SHORT).show();
             finishActivityNoAnimation();
             return;
         }
 
+        onImageSessionAvailable(ImageSession.create(this, mMediaItem.filePath,
+                result.decoder, result.screenNail, TileImageView.DEFAULT_DECODER_COUNT - 1));
+    }
+
+    /**
+     * 区域解码器和screennail已经准备好
+     *
+     * @param session
+     */
+    private void onImageSessionAvailable(ImageSession session) {
+        mSession = session;
+        BitmapRegionDecoder regionDecoder = session.getRegionDecoder();
         mRegionDecoder = regionDecoder;
         mUseRegionDecoder = true;
         mState = STATE_LOADED;
 
-        BitmapFactory.Options options = new BitmapFactory.Options();
         int width = regionDecoder.getWidth();
         int height = regionDecoder.getHeight();
-        options.inSampleSize = BitmapUtils.computeSampleSize(width, height, BitmapUtils.UNCONSTRAINED, BACKUP_PIXEL_COUNT);
-        mBitmap = regionDecoder.decodeRegion(new Rect(0, 0, width, height), options);
+        mBitmap = session.getScreenNail();
 
         mBitmapScreenNail = new BitmapScreenNail(mBitmap);
 
         TileImageViewAdapter adapter = new TileImageViewAdapter();
         adapter.setScreenNail(mBitmapScreenNail, width, height);
-        adapter.setRegionDecoder(regionDecoder);
-
+        session.attach(adapter);
+        adapter.setDiskCache(TileDiskCache.getInstance(this), mMediaItem.filePath);
+        adapter.setOpaqueTileMode(getIntent().getBooleanExtra(KEY_OPAQUE_TILE_MODE, false),
+                mMediaItem.getMimeType());
+        TileCalibration.getInstance(this).calibrateIfNeeded(mMediaItem.filePath);
+        mAdapter = adapter;
+
+        mCropView.setTileCache(session.getTileCache());
         mCropView.setDataModel(adapter, mMediaItem.getRotation());
         mCropView.initializeHighlightRectangle();
+        // The handler holds the render lock, so the preview is not drawn
+        // any more once the model is replaced.
+        releasePreview();
     }
 
     /**
@@ -521,7 +625,9 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
 
         mBitmap = bitmap;
         BitmapFactory.Options options = new BitmapFactory.Options();
-        mCropView.setDataModel(new BitmapTileProvider(bitmap, 512), mMediaItem.getRotation());
+        BitmapTileProvider provider = new BitmapTileProvider(bitmap, 512);
+        provider.setOpaqueTileMode(getIntent().getBooleanExtra(KEY_OPAQUE_TILE_MODE, false));
+        mCropView.setDataModel(provider, mMediaItem.getRotation());
         mCropView.initializeHighlightRectangle();
     }
 
@@ -568,7 +674,6 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
         public Intent run(final ThreadPool.JobContext jc) {
             Rect rect = CropBusiness.checkCropRect(mCropRect);
             Intent result = getIntent();
-            result.putExtra(KEY_CROPPED_RECT, rect);
 
             String outputPath = result.getStringExtra(KEY_OUTPUT_PATH);
             String requestFormat = result.getStringExtra(KEY_COMPRESS_FORMAT);
@@ -578,15 +683,163 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
                 result.putExtra(KEY_OUTPUT_PATH, outputPath);
             }
 
-            Bitmap cropped = getCroppedImage(rect, false);
-            CropBusiness.saveMedia(jc, cropped, outputPath);
+            // A crop without scaling is copied from the JPEG data if it can
+            // be, which may move its top left corner to the MCU grid.
+            if (saveCroppedImageLossless(jc, rect, fileExtension, outputPath) != null) {
+                result.putExtra(KEY_CROPPED_RECT, rect);
+                if (!saveExtraOutputs(jc, null, rect, outputPath, result)) return null;
+                result.setData(Uri.fromFile(new File(outputPath)));
+                return result;
+            }
+            if (jc.isCancelled()) return null;
+            result.putExtra(KEY_CROPPED_RECT, rect);
+
+            boolean streamable = canSaveInStrips(fileExtension);
+            Bitmap cropped = null;
+            if (!streamable || !isTooLargeForBitmap(rect)) {
+                cropped = getCroppedImage(jc, new Rect(rect), false);
+            }
+            if (cropped != null) {
+                // The extra outputs are scaled down from the crop while it
+                // is being encoded.
+                Future<File> encode = submitEncode(cropped, outputPath);
+                boolean saved = saveExtraOutputs(jc, cropped, rect, outputPath, result);
+                File files[] = waitEncodes(jc, Collections.singletonList(encode));
+                // The output bitmap is only needed for encoding, let the next
+                // crop of the same size reuse it.
+                BitmapPool pool = BitmapPool.getPool(BitmapPool.TYPE_SHARED);
+                pool.recycle(cropped);
+                Log.d(TAG, pool.toString());
+                if (!saved || files[0] == null || jc.isCancelled()) return null;
+            } else if (!streamable || saveCroppedImageInStrips(jc, rect, outputPath) == null
+                    || !saveExtraOutputs(jc, null, rect, outputPath, result)) {
+                return null;
+            }
             result.setData(Uri.fromFile(new File(outputPath)));
 
             return result;
         }
     }
 
-    private Bitmap getCroppedImage(Rect rect, boolean isScale) {
+    /**
+     * 保存KEY_EXTRA_OUTPUT_SIZES的各个尺寸，路径放在KEY_EXTRA_OUTPUT_PATHS中。
+     * 从大到小，每个尺寸都由上一个缩小得到，编码同时进行
+     *
+     * @param source 已经解码好的输出图，为null时按最大的尺寸解码一次
+     * @return 被取消或者解码失败时返回false
+     */
+    private boolean saveExtraOutputs(ThreadPool.JobContext jc, Bitmap source, Rect rect,
+                                     String outputPath, Intent result) {
+        int sizes[] = result.getIntArrayExtra(KEY_EXTRA_OUTPUT_SIZES);
+        if (sizes == null || sizes.length == 0) return true;
+
+        // The indices of the sizes, the largest first.
+        Integer order[] = new Integer[sizes.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        final int requested[] = sizes;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return requested[b] - requested[a];
+            }
+        });
+
+        // The extra outputs keep the aspect ratio of the full one.
+        computeCropLayout(new Rect(rect), false);
+        int width = mCroppedWidth;
+        int height = mCroppedHeight;
+        Bitmap base = source;
+        if (base == null) {
+            base = getCroppedImage(jc, new Rect(rect), false, sizes[order[0]]);
+            if (base == null) return false;
+        }
+
+        long start = System.nanoTime();
+        BitmapPool pool = BitmapPool.getPool(BitmapPool.TYPE_SHARED);
+        ArrayList<Bitmap> scaled = new ArrayList<Bitmap>();
+        ArrayList<Future<File>> encodes = new ArrayList<Future<File>>();
+        String paths[] = new String[sizes.length];
+        File files[];
+        try {
+            Bitmap previous = base;
+            for (int index : order) {
+                if (jc.isCancelled()) return false;
+                int size = Math.max(1, sizes[index]);
+                float scale = Math.min(1f, (float) size / Math.max(width, height));
+                int w = Math.max(1, Math.round(width * scale));
+                int h = Math.max(1, Math.round(height * scale));
+                Bitmap bitmap = previous;
+                if (w < previous.getWidth() || h < previous.getHeight()) {
+                    bitmap = CropBusiness.scaleDown(previous,
+                            Math.min(w, previous.getWidth()), Math.min(h, previous.getHeight()));
+                    scaled.add(bitmap);
+                }
+                paths[index] = CropBusiness.getSizedOutputPath(outputPath, size);
+                encodes.add(submitEncode(bitmap, paths[index]));
+                previous = bitmap;
+            }
+        } finally {
+            // The encodes use the bitmaps until they are done.
+            files = waitEncodes(jc, encodes);
+            for (Bitmap bitmap : scaled) pool.recycle(bitmap);
+            if (base != source) pool.recycle(base);
+        }
+        for (int i = 0; i < files.length; i++) {
+            if (files[i] == null) paths[order[i]] = null;
+        }
+        Log.d(TAG, "saved " + sizes.length + " extra outputs in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+        result.putExtra(KEY_EXTRA_OUTPUT_PATHS, paths);
+        return !jc.isCancelled();
+    }
+
+    // Encodes the bitmap in another thread of the pool, the bitmap must not
+    // be changed until it is done.
+    private Future<File> submitEncode(final Bitmap bitmap, final String filePath) {
+        return ThreadPool.getInstance().submit(new ThreadPool.Job<File>() {
+            @Override
+            public File run(ThreadPool.JobContext jc) {
+                jc.setMode(ThreadPool.MODE_NONE);
+                return CropBusiness.saveMedia(jc, bitmap, filePath);
+            }
+        });
+    }
+
+    // Waits for the encodes, returns the saved files in the same order. If
+    // the save is cancelled, the encodes are cancelled too, which interrupts
+    // their output streams.
+    private File[] waitEncodes(ThreadPool.JobContext jc, final List<Future<File>> encodes) {
+        File files[] = new File[encodes.size()];
+        // The caller only waits, let the encodes have its CPU slot.
+        jc.setMode(ThreadPool.MODE_NONE);
+        jc.setCancelListener(new ThreadPool.CancelListener() {
+            @Override
+            public void onCancel() {
+                for (Future<File> encode : encodes) encode.cancel();
+            }
+        });
+        try {
+            for (int i = 0; i < files.length; i++) {
+                files[i] = encodes.get(i).get();
+            }
+        } finally {
+            jc.setCancelListener(null);
+            jc.setMode(ThreadPool.MODE_CPU);
+        }
+        return files;
+    }
+
+    /**
+     * 计算输出图的大小(mCroppedWidth, mCroppedHeight)以及rect缩放后在输出图中的位置(mDestRect)
+     */
+    private void computeCropLayout(Rect rect, boolean isScale) {
+        computeCropLayout(rect, isScale, 0);
+    }
+
+    /**
+     * @param maxSide 大于0时把整个输出图等比缩小到长边不超过maxSide
+     */
+    private void computeCropLayout(Rect rect, boolean isScale, int maxSide) {
         Utils.assertTrue(rect.width() > 0 && rect.height() > 0);
 
         Bundle extras = getIntent().getExtras();
@@ -634,10 +887,114 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
                 Math.round((outputX + rectWidth) / 2f),
                 Math.round((outputY + rectHeight) / 2f));
 
+        if (maxSide > 0 && Math.max(outputX, outputY) > maxSide) {
+            float scale = (float) maxSide / Math.max(outputX, outputY);
+            outputX = Math.max(1, Math.round(outputX * scale));
+            outputY = Math.max(1, Math.round(outputY * scale));
+            dest.set(Math.round(dest.left * scale), Math.round(dest.top * scale),
+                    Math.round(dest.right * scale), Math.round(dest.bottom * scale));
+            scaleX *= scale;
+            scaleY *= scale;
+        }
+
         mCroppedWidth = outputX;
         mCroppedHeight = outputY;
+        mCropScale = Math.max(scaleX, scaleY);
         mSrcRect.set(rect);
         mDestRect.set(dest);
+    }
+
+    // Only the JPEG crops of a region decoder without rotation can be
+    // streamed.
+    private boolean canSaveInStrips(String fileExtension) {
+        int rotation = mMediaItem.getRotation();
+        return mUseRegionDecoder && (rotation == 0 || rotation == 360)
+                && !"png".equalsIgnoreCase(fileExtension);
+    }
+
+    /**
+     * 无损裁剪：源图是JPEG、输出JPEG、没有旋转也没有缩放时，直接复制裁剪区域的DCT系数。
+     * rect的左上角不在MCU边界上时，只有没指定输出尺寸才把它移到MCU边界，rect会被修改
+     *
+     * @return 保存的文件，不能无损裁剪、失败或被取消时返回null
+     */
+    private File saveCroppedImageLossless(ThreadPool.JobContext jc, Rect rect,
+                                          String fileExtension, String outputPath) {
+        int rotation = mMediaItem.getRotation();
+        if (!mUseRegionDecoder || (rotation != 0 && rotation != 360)
+                || "png".equalsIgnoreCase(fileExtension)
+                || TextUtils.isEmpty(mMediaItem.filePath)) {
+            return null;
+        }
+        computeCropLayout(rect, false);
+        if (mCroppedWidth != rect.width() || mCroppedHeight != rect.height()
+                || !mDestRect.equals(new Rect(0, 0, mCroppedWidth, mCroppedHeight))) {
+            return null;
+        }
+
+        JpegCropTranscoder transcoder = JpegCropTranscoder.open(mMediaItem.filePath);
+        if (transcoder == null) return null;
+        if (transcoder.getWidth() != mRegionDecoder.getWidth()
+                || transcoder.getHeight() != mRegionDecoder.getHeight()
+                || (!transcoder.isAligned(rect) && (hasOutputSize() || hasAspectRatio()))) {
+            transcoder.close();
+            return null;
+        }
+        Rect aligned = new Rect(rect);
+        transcoder.alignRect(aligned);
+        long start = System.nanoTime();
+        File file = CropBusiness.saveJpegLossless(jc, transcoder, aligned, outputPath);
+        Log.d(TAG, "saved " + aligned.width() + "x" + aligned.height() + " losslessly in "
+                + (System.nanoTime() - start) / 1000000 + "ms: " + file);
+        if (file != null) rect.set(aligned);
+        return file;
+    }
+
+    private boolean hasOutputSize() {
+        Bundle extras = getIntent().getExtras();
+        return extras != null && (extras.getInt(KEY_OUTPUT_X, 0) > 0
+                || extras.getInt(KEY_OUTPUT_Y, 0) > 0
+                || extras.getInt(KEY_OUTPUT_MAX_X, 0) > 0
+                || extras.getInt(KEY_OUTPUT_MAX_Y, 0) > 0);
+    }
+
+    // Aligning the crop would break the aspect ratio the caller asked for.
+    private boolean hasAspectRatio() {
+        Bundle extras = getIntent().getExtras();
+        return extras != null && (extras.getInt(KEY_ASPECT_X, 0) > 0
+                || extras.getInt(KEY_ASPECT_Y, 0) > 0);
+    }
+
+    private boolean isTooLargeForBitmap(Rect rect) {
+        computeCropLayout(rect, false);
+        return 4L * mCroppedWidth * mCroppedHeight
+                > Runtime.getRuntime().maxMemory() / STREAMING_HEAP_FRACTION;
+    }
+
+    /**
+     * 分条解码并编码，不分配整张输出图
+     */
+    private File saveCroppedImageInStrips(ThreadPool.JobContext jc, Rect rect, String outputPath) {
+        computeCropLayout(rect, false);
+        int sample = BitmapUtils.computeSampleSizeLarger(mCropScale);
+        File file = CropBusiness.saveMediaInStrips(jc, mRegionDecoder, new Rect(mSrcRect),
+                new Rect(mDestRect), mCroppedWidth, mCroppedHeight, sample,
+                CropBusiness.getExportTileSize(BaseCropActivity.this),
+                TileImageView.getTilePool(), outputPath);
+        Log.d(TAG, "saved " + mCroppedWidth + "x" + mCroppedHeight + " in strips: " + file);
+        return file;
+    }
+
+    private Bitmap getCroppedImage(ThreadPool.JobContext jc, Rect rect, boolean isScale) {
+        return getCroppedImage(jc, rect, isScale, 0);
+    }
+
+    private Bitmap getCroppedImage(ThreadPool.JobContext jc, Rect rect, boolean isScale,
+                                   int maxSide) {
+        computeCropLayout(rect, isScale, maxSide);
+        int outputX = mCroppedWidth;
+        int outputY = mCroppedHeight;
+        Rect dest = new Rect(mDestRect);
 
         try {
             if (mUseRegionDecoder) {
@@ -646,8 +1003,7 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
                 CropBusiness.rotateRectangle(dest, outputX, outputY, 360 - rotation);
 
                 BitmapFactory.Options options = new BitmapFactory.Options();
-                int sample = BitmapUtils.computeSampleSizeLarger(
-                        Math.max(scaleX, scaleY));
+                int sample = BitmapUtils.computeSampleSizeLarger(mCropScale);
                 options.inSampleSize = sample;
 
                 // The decoding result is what we want if
@@ -664,28 +1020,40 @@ public abstract class BaseCropActivity extends FragmentActivity implements CropC
                     }
                 }
 
-                Bitmap result;
-                if (rotation == 90 || rotation == 270) {
-                    result = Bitmap.createBitmap(
-                            outputY, outputX, Bitmap.Config.ARGB_8888);
-                } else {
-                    result = Bitmap.createBitmap(
-                            outputX, outputY, Bitmap.Config.ARGB_8888);
-                }
-
+                // The tiles are drawn through the rotated canvas, so the
+                // result is in the output orientation and never rotated again.
+                BitmapPool pool = BitmapPool.getPool(BitmapPool.TYPE_SHARED);
+                Bitmap result = pool.obtainBitmap(outputX, outputY, Bitmap.Config.ARGB_8888);
                 Canvas canvas = new Canvas(result);
-                //CropBusiness.rotateCanvas(canvas, outputX, outputY, rotation);
+                CropBusiness.rotateCanvas(canvas, outputX, outputY, rotation);
 
-                CropBusiness.drawInTiles(canvas, mRegionDecoder, rect, dest, sample);
-                if (rotation != 0 && rotation != 360) {
-                    result = BitmapUtils.rotateBitmap(result, rotation, true);
+                int tileSize = CropBusiness.getExportTileSize(BaseCropActivity.this);
+                TileBitmapPool tilePool = TileImageView.getTilePool();
+                List<BitmapRegionDecoder> decoders = mSession == null
+                        ? null : mSession.getRegionDecoders();
+                long start = System.nanoTime();
+                boolean drawn;
+                if (decoders != null && decoders.size() > 1) {
+                    drawn = CropBusiness.drawInTiles(jc, canvas, decoders, rect, dest,
+                            sample, tileSize, tilePool);
+                } else {
+                    drawn = CropBusiness.drawInTiles(canvas, mRegionDecoder, rect, dest,
+                            sample, tileSize, tilePool);
+                }
+                if (!drawn) {
+                    pool.recycle(result);
+                    return null;
                 }
+                Log.d(TAG, "drawInTiles " + rect.width() + "x" + rect.height() + ", "
+                        + (decoders == null ? 1 : decoders.size()) + " decoders: "
+                        + (System.nanoTime() - start) / 1000000 + "ms");
                 return result;
             } else {
                 int rotation = mMediaItem.getRotation();
                 CropBusiness.rotateRectangle(rect, mCropView.getImageWidth(), mCropView.getImageHeight(), 360 - rotation);
                 CropBusiness.rotateRectangle(dest, outputX, outputY, 360 - rotation);
-                Bitmap result = Bitmap.createBitmap(outputX, outputY, Bitmap.Config.ARGB_8888);
+                Bitmap result = BitmapPool.getPool(BitmapPool.TYPE_SHARED)
+                        .obtainBitmap(outputX, outputY, Bitmap.Config.ARGB_8888);
                 Canvas canvas = new Canvas(result);
                 CropBusiness.rotateCanvas(canvas, outputX, outputY, rotation);
                 canvas.drawBitmap(mBitmap, rect, dest, new Paint(Paint.FILTER_BITMAP_FLAG));
@@ -90,5 +90,19 @@ public interface CropConstants {
      * 输出图片的压缩格式
      */
     public static final String KEY_COMPRESS_FORMAT = "compress-format";
+    /**
+     * 额外输出的尺寸(int[]，输出图长边的最大值)。都从同一次解码的结果逐级缩小得到，
+     * 保存在输出路径加"_尺寸"的文件中
+     */
+    public static final String KEY_EXTRA_OUTPUT_SIZES = "extra-output-sizes";
+    /**
+     * 额外输出的路径(String[])，和KEY_EXTRA_OUTPUT_SIZES一一对应，保存失败的为null
+     */
+    public static final String KEY_EXTRA_OUTPUT_PATHS = "extra-output-paths";
+    /**
+     * 是否用RGB_565解码不透明图片(JPEG)的tile，默认false。tile的内存和上传时间减半，
+     * 但渐变处可能有色带
+     */
+    public static final String KEY_OPAQUE_TILE_MODE = "opaque-tile-mode";
 
 }
@@ -3,17 +3,19 @@ package com.img.crop;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
-import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.support.annotation.Nullable;
 import android.support.v4.app.FragmentActivity;
-import android.util.Log;
 import android.widget.Toast;
 
 import com.img.crop.view.PhotoView;
+import com.img.crop.core.ImageSession;
+import com.img.crop.core.TileImageView;
+import com.img.crop.core.TileCalibration;
+import com.img.crop.core.TileDiskCache;
 import com.img.crop.core.TileImageViewAdapter;
 import com.img.crop.glsrender.gl11.BitmapScreenNail;
 import com.img.crop.thdpool.Future;
@@ -21,6 +23,7 @@ import com.img.crop.thdpool.FutureListener;
 import com.img.crop.thdpool.ThreadPool;
 import com.img.crop.utils.BitmapUtils;
 import com.img.crop.utils.CropBusiness;
+import com.img.crop.utils.LargeImageRequest;
 import com.img.crop.utils.LocalImageRequest;
 import com.img.crop.utils.SynchronizedHandler;
 
@@ -51,6 +54,14 @@ public class ImageViewActivity extends FragmentActivity {
      * 加载普通图片
      */
     private static final int MSG_BITMAP = 2;
+    /**
+     * EXIF缩略图占位
+     */
+    private static final int MSG_PREVIEW = 3;
+    /**
+     * 图片已经被其他界面加载过(ImageSession)
+     */
+    private static final int MSG_IMAGE_SESSION = 4;
 
     private static final int BACKUP_PIXEL_COUNT = 480000; // around 800x600
 
@@ -70,9 +81,15 @@ public class ImageViewActivity extends FragmentActivity {
     private BitmapRegionDecoder mRegionDecoder;
     private boolean mUseRegionDecoder = false;
     private BitmapScreenNail mBitmapScreenNail;
+    private TileImageViewAdapter mAdapter;
+    // Holds the decoders and the screennail of a large image.
+    private ImageSession mSession;
+    // The EXIF thumbnail shown until the screennail is decoded.
+    private BitmapScreenNail mPreviewScreenNail;
+    private TileImageViewAdapter mPreviewAdapter;
 
     private ProgressHUD mProgressDialog;
-    private Future<BitmapRegionDecoder> mLoadTask;
+    private Future<LargeImageRequest.Result> mLoadTask;
     private Future<Bitmap> mLoadBitmapTask;
 
     private MediaItem mMediaItem;
@@ -115,7 +132,7 @@ public class ImageViewActivity extends FragmentActivity {
         mPhotoView.onPause();
 
         try {
-            Future<BitmapRegionDecoder> loadTask = mLoadTask;
+            Future<LargeImageRequest.Result> loadTask = mLoadTask;
             if (loadTask != null && !loadTask.isDone()) {
                 // load in progress, try to cancel it
                 loadTask.cancel();
@@ -138,10 +155,22 @@ public class ImageViewActivity extends FragmentActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mAdapter != null) {
+            mAdapter.clear();
+            if (mSession != null) mSession.detach(mAdapter);
+            mAdapter = null;
+        }
         if (mBitmapScreenNail != null) {
             mBitmapScreenNail.recycle();
             mBitmapScreenNail = null;
         }
+        releasePreview();
+        if (mSession != null) {
+            // The screennail belongs to the session.
+            mSession.release();
+            mSession = null;
+            mBitmap = null;
+        }
 
         if (mBitmap != null && !mBitmap.isRecycled()) {
             mBitmap.recycle();
@@ -187,7 +216,14 @@ public class ImageViewActivity extends FragmentActivity {
         switch (message.what) {
             case MSG_LARGE_BITMAP:
                 dismissLoadingProgressDialog();
-                onBitmapRegionDecoderAvailable((BitmapRegionDecoder) message.obj);
+                onBitmapRegionDecoderAvailable((LargeImageRequest.Result) message.obj);
+                break;
+            case MSG_IMAGE_SESSION:
+                onImageSessionAvailable((ImageSession) message.obj);
+                break;
+            case MSG_PREVIEW:
+                dismissLoadingProgressDialog();
+                onPreviewAvailable((Bitmap) message.obj, message.arg1, message.arg2);
                 break;
             case MSG_BITMAP:
                 dismissLoadingProgressDialog();
@@ -205,30 +241,36 @@ public class ImageViewActivity extends FragmentActivity {
             return;
         }
 
-        showLoadingProgressDialog();
         boolean supportedByBitmapRegionDecoder = CropBusiness.isSupportRegionDecoder(mMediaItem.filePath);
+        if (supportedByBitmapRegionDecoder) {
+            // 其他界面已经加载了这张图，直接使用
+            ImageSession session = ImageSession.acquire(mMediaItem.filePath);
+            if (session != null) {
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_IMAGE_SESSION, session));
+                return;
+            }
+        }
+
+        showLoadingProgressDialog();
         if (supportedByBitmapRegionDecoder) {
             mLoadTask = ThreadPool.getInstance().submit(
-                    new ThreadPool.Job<BitmapRegionDecoder>() {
-                        @Override
-                        public BitmapRegionDecoder run(ThreadPool.JobContext jc) {
-                            try {
-                                return BitmapRegionDecoder.newInstance(mMediaItem.filePath, false);
-                            } catch (Throwable t) {
-                                Log.w(TAG, t);
-                                return null;
-                            }
-                        }
-                    },
-                    new FutureListener<BitmapRegionDecoder>() {
-                        public void onFutureDone(Future<BitmapRegionDecoder> future) {
+                    new LargeImageRequest(mMediaItem.filePath, BACKUP_PIXEL_COUNT,
+                            new LargeImageRequest.PreviewListener() {
+                                @Override
+                                public void onPreviewAvailable(Bitmap preview, int width, int height) {
+                                    mHandler.sendMessage(mHandler.obtainMessage(
+                                            MSG_PREVIEW, width, height, preview));
+                                }
+                            }),
+                    new FutureListener<LargeImageRequest.Result>() {
+                        public void onFutureDone(Future<LargeImageRequest.Result> future) {
                             mLoadTask = null;
-                            BitmapRegionDecoder decoder = future.get();
+                            LargeImageRequest.Result result = future.get();
                             if (future.isCancelled()) {
-                                if (decoder != null) decoder.recycle();
+                                if (result != null) result.recycle();
                                 return;
                             }
-                            mHandler.sendMessage(mHandler.obtainMessage(MSG_LARGE_BITMAP, decoder));
+                            mHandler.sendMessage(mHandler.obtainMessage(MSG_LARGE_BITMAP, result));
                         }
                     });
         } else {
@@ -253,35 +295,83 @@ public class ImageViewActivity extends FragmentActivity {
         }
     }
 
+    /**
+     * EXIF缩略图回调，在screennail解码完成之前作为占位图显示
+     *
+     * @param preview
+     * @param width   原图宽度
+     * @param height  原图高度
+     */
+    private void onPreviewAvailable(Bitmap preview, int width, int height) {
+        if (mState != STATE_INIT || mPreviewScreenNail != null) {
+            preview.recycle();
+            return;
+        }
+        mPreviewScreenNail = new BitmapScreenNail(preview);
+        mPreviewAdapter = new TileImageViewAdapter();
+        mPreviewAdapter.setScreenNail(mPreviewScreenNail, width, height);
+        mPhotoView.setDataModel(mPreviewAdapter, mMediaItem.getRotation());
+    }
+
+    private void releasePreview() {
+        if (mPreviewAdapter != null) {
+            mPreviewAdapter.clear();
+            mPreviewAdapter = null;
+        }
+        if (mPreviewScreenNail != null) {
+            mPreviewScreenNail.recycle();
+            mPreviewScreenNail = null;
+        }
+    }
+
     /**
      * 加载图片回调（区域解码）
      *
-     * @param regionDecoder
+     * @param result 区域解码器和解码好的screennail
      */
-    private void onBitmapRegionDecoderAvailable(BitmapRegionDecoder regionDecoder) {
-        if (regionDecoder == null) {
+    private void onBitmapRegionDecoderAvailable(LargeImageRequest.Result result) {
+        if (result == null) {
             Toast.makeText(this, R.string.load_bmp_failure, Toast.LENGTH_SHORT).show();
             finishActivityNoAnimation();
             return;
         }
 
+        onImageSessionAvailable(ImageSession.create(this, mMediaItem.filePath,
+                result.decoder, result.screenNail, TileImageView.DEFAULT_DECODER_COUNT - 1));
+    }
+
+    /**
+     * 区域解码器和screennail已经准备好
+     *
+     * @param session
+     */
+    private void onImageSessionAvailable(ImageSession session) {
+        mSession = session;
+        BitmapRegionDecoder regionDecoder = session.getRegionDecoder();
         mRegionDecoder = regionDecoder;
         mUseRegionDecoder = true;
         mState = STATE_LOADED;
 
-        BitmapFactory.Options options = new BitmapFactory.Options();
         int width = regionDecoder.getWidth();
         int height = regionDecoder.getHeight();
-        options.inSampleSize = BitmapUtils.computeSampleSize(width, height, BitmapUtils.UNCONSTRAINED, BACKUP_PIXEL_COUNT);
-        mBitmap = regionDecoder.decodeRegion(new Rect(0, 0, width, height), options);
+        mBitmap = session.getScreenNail();
 
         mBitmapScreenNail = new BitmapScreenNail(mBitmap);
 
         TileImageViewAdapter adapter = new TileImageViewAdapter();
         adapter.setScreenNail(mBitmapScreenNail, width, height);
-        adapter.setRegionDecoder(regionDecoder);
-
+        session.attach(adapter);
+        adapter.setDiskCache(TileDiskCache.getInstance(this), mMediaItem.filePath);
+        adapter.setOpaqueTileMode(getIntent().getBooleanExtra(
+                CropConstants.KEY_OPAQUE_TILE_MODE, false), mMediaItem.getMimeType());
+        TileCalibration.getInstance(this).calibrateIfNeeded(mMediaItem.filePath);
+        mAdapter = adapter;
+
+        mPhotoView.setTileCache(session.getTileCache());
         mPhotoView.setDataModel(adapter, mMediaItem.getRotation());
+        // The handler holds the render lock, so the preview is not drawn
+        // any more once the model is replaced.
+        releasePreview();
     }
 
     /**
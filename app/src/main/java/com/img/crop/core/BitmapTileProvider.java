@@ -1,40 +1,136 @@
 package com.img.crop.core;
 
-import java.util.ArrayList;
-
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
 
 import com.img.crop.glsrender.gl11.BitmapScreenNail;
+import com.img.crop.utils.BitmapPool;
 import com.img.crop.utils.BitmapUtils;
 import com.img.crop.glsrender.gl11.ScreenNail;
+import com.img.crop.thdpool.ThreadPool.JobContext;
+import com.img.crop.utils.Utils;
 
 public class BitmapTileProvider implements TileImageView.Model {
     private final ScreenNail mScreenNail;
+    // mMipmaps[0] is the bitmap itself, and each of the others is half the
+    // size of the previous one. They are built by acquireMipmap() the first
+    // time a tile of the level is asked for. Guarded by mMipmaps.
     private final Bitmap[] mMipmaps;
-    private final Config mConfig;
+    private final boolean[] mBuilding;
+    // The number of threads reading each level, to make a tile or to build
+    // another level from it. recycle() leaves a level being read to the last
+    // releaseMipmap(), so it is not given to the pool while in use.
+    private final int[] mUseCounts;
+    private Config mConfig;
     private final int mImageWidth;
     private final int mImageHeight;
+    private final boolean mHasAlpha;
 
     private boolean mRecycled = false;
 
+    // The rows are copied from the mipmap to the tile through this buffer.
+    private static final int COPY_ROWS = 16;
+    private static final ThreadLocal<int[]> sCopyBuffer = new ThreadLocal<int[]>();
+    // Zeros, for clearing the part of a reused tile outside the mipmap.
+    private static final ThreadLocal<int[]> sClearBuffer = new ThreadLocal<int[]>();
+
     public BitmapTileProvider(Bitmap bitmap, int maxBackupSize) {
         mImageWidth = bitmap.getWidth();
         mImageHeight = bitmap.getHeight();
-        ArrayList<Bitmap> list = new ArrayList<Bitmap>();
-        list.add(bitmap);
-        while (bitmap.getWidth() > maxBackupSize
-                || bitmap.getHeight() > maxBackupSize) {
-            bitmap = BitmapUtils.resizeBitmapByScale(bitmap, 0.5f, false);
-            list.add(bitmap);
+        mHasAlpha = bitmap.hasAlpha();
+        int levelCount = 0;
+        int width = mImageWidth;
+        int height = mImageHeight;
+        while (width > maxBackupSize || height > maxBackupSize) {
+            width = Math.round(width * 0.5f);
+            height = Math.round(height * 0.5f);
+            ++levelCount;
         }
 
-        mScreenNail = new BitmapScreenNail(list.remove(list.size() - 1));
-        mMipmaps = list.toArray(new Bitmap[list.size()]);
+        // Only the screennail is made now, so the first frame can be drawn
+        // without waiting for the other levels.
+        Bitmap screenNail = levelCount == 0 ? bitmap : BitmapUtils.resizeBitmapByScale(
+                bitmap, 1f / (1 << levelCount), false,
+                BitmapPool.getPool(BitmapPool.TYPE_SHARED));
+        mScreenNail = new BitmapScreenNail(screenNail);
+        mMipmaps = new Bitmap[levelCount];
+        mBuilding = new boolean[levelCount];
+        mUseCounts = new int[levelCount];
+        if (levelCount > 0) mMipmaps[0] = bitmap;
         mConfig = Config.ARGB_8888;
     }
 
+    // Returns the mipmap of the level, building it if needed, or null if we
+    // are recycled. The caller must call releaseMipmap() when it is done
+    // with it. The tile decoders call it concurrently: each level is built
+    // by the first thread asking for it while the others wait, so different
+    // levels are built in parallel on the ThreadPool threads running the
+    // decoders.
+    private Bitmap acquireMipmap(int level) {
+        int source;
+        Bitmap sourceBitmap;
+        synchronized (mMipmaps) {
+            while (true) {
+                if (mRecycled) return null;
+                if (mMipmaps[level] != null) {
+                    ++mUseCounts[level];
+                    return mMipmaps[level];
+                }
+                if (!mBuilding[level]) break;
+                Utils.waitWithoutInterrupt(mMipmaps);
+            }
+            mBuilding[level] = true;
+            // Scale from the nearest level we have, which is at least 0.
+            source = level - 1;
+            while (mMipmaps[source] == null) --source;
+            sourceBitmap = mMipmaps[source];
+            ++mUseCounts[source];
+        }
+
+        BitmapPool pool = BitmapPool.getPool(BitmapPool.TYPE_SHARED);
+        Bitmap mipmap = null;
+        try {
+            mipmap = BitmapUtils.resizeBitmapByScale(sourceBitmap,
+                    1f / (1 << (level - source)), false, pool);
+        } finally {
+            releaseMipmap(source);
+            synchronized (mMipmaps) {
+                mBuilding[level] = false;
+                if (mRecycled) {
+                    if (mipmap != null) pool.recycle(mipmap);
+                    mipmap = null;
+                } else {
+                    mMipmaps[level] = mipmap;
+                    if (mipmap != null) ++mUseCounts[level];
+                }
+                mMipmaps.notifyAll();
+            }
+        }
+        return mipmap;
+    }
+
+    private void releaseMipmap(int level) {
+        synchronized (mMipmaps) {
+            if (--mUseCounts[level] == 0 && mRecycled && mMipmaps[level] != null) {
+                BitmapPool.getPool(BitmapPool.TYPE_SHARED).recycle(mMipmaps[level]);
+                mMipmaps[level] = null;
+            }
+        }
+    }
+
+    // If enabled and the bitmap has no alpha, the tiles are made in RGB_565
+    // to halve their memory and upload cost. Call it before the provider is
+    // given to the view.
+    public void setOpaqueTileMode(boolean enabled) {
+        mConfig = enabled && !mHasAlpha
+                ? Config.RGB_565 : Config.ARGB_8888;
+    }
+
+    @Override
+    public Config getTileConfig() {
+        return mConfig;
+    }
+
     @Override
     public ScreenNail getScreenNail() {
         return mScreenNail;
@@ -56,32 +152,96 @@ public class BitmapTileProvider implements TileImageView.Model {
     }
 
     @Override
-    public Bitmap getTile(int level, int x, int y, int tileSize,
+    public Bitmap getTile(JobContext jc, int level, int x, int y, int tileSize,
             int borderSize, TileBitmapPool pool) {
+        Bitmap mipmap = acquireMipmap(level);
+        if (mipmap == null) return null;
+        try {
+            return copyTile(mipmap, level, x, y, tileSize, borderSize, pool);
+        } finally {
+            releaseMipmap(level);
+        }
+    }
+
+    private Bitmap copyTile(Bitmap mipmap, int level, int x, int y, int tileSize,
+            int borderSize, TileBitmapPool pool) {
+
         x >>= level;
         y >>= level;
         int size = tileSize + 2 * borderSize;
 
-        Bitmap result = pool == null ? null : pool.getBitmap();
+        Bitmap result = pool == null ? null : pool.getBitmap(size, size, mConfig);
         if (result == null) {
-            result = Bitmap.createBitmap(size, size, mConfig);
-        } else {
-            result.eraseColor(0);
+            result = BitmapPool.getPool(BitmapPool.TYPE_SHARED)
+                    .getBitmap(size, size, mConfig);
+        }
+        boolean reused = result != null;
+        if (!reused) result = Bitmap.createBitmap(size, size, mConfig);
+
+        // The part of the tile covered by the mipmap, in tile coordinates.
+        int left = x - borderSize;
+        int top = y - borderSize;
+        int copyLeft = Math.max(0, -left);
+        int copyTop = Math.max(0, -top);
+        int copyRight = Math.max(copyLeft, Math.min(size, mipmap.getWidth() - left));
+        int copyBottom = Math.max(copyTop, Math.min(size, mipmap.getHeight() - top));
+        int copyWidth = copyRight - copyLeft;
+
+        int[] buffer = getBuffer(sCopyBuffer, size * COPY_ROWS);
+        for (int row = copyTop; copyWidth > 0 && row < copyBottom; row += COPY_ROWS) {
+            int rows = Math.min(COPY_ROWS, copyBottom - row);
+            mipmap.getPixels(buffer, 0, copyWidth,
+                    left + copyLeft, top + row, copyWidth, rows);
+            result.setPixels(buffer, 0, copyWidth, copyLeft, row, copyWidth, rows);
         }
 
-        Bitmap mipmap = mMipmaps[level];
-        Canvas canvas = new Canvas(result);
-        int offsetX = -x + borderSize;
-        int offsetY = -y + borderSize;
-        canvas.drawBitmap(mipmap, offsetX, offsetY, null);
+        // A new bitmap is already transparent. For a reused one, we only
+        // clear what was not copied, which is just the border of the tiles
+        // at the edge of the image.
+        if (reused) {
+            clear(result, 0, 0, size, copyTop);
+            clear(result, 0, copyBottom, size, size);
+            clear(result, 0, copyTop, copyLeft, copyBottom);
+            clear(result, copyRight, copyTop, size, copyBottom);
+        }
         return result;
     }
 
+    private static void clear(Bitmap bitmap, int left, int top, int right, int bottom) {
+        int width = right - left;
+        if (width <= 0 || bottom <= top) return;
+        int[] zeros = getBuffer(sClearBuffer, bitmap.getWidth() * COPY_ROWS);
+        for (int row = top; row < bottom; row += COPY_ROWS) {
+            int rows = Math.min(COPY_ROWS, bottom - row);
+            bitmap.setPixels(zeros, 0, width, left, row, width, rows);
+        }
+    }
+
+    // Returns the buffer of this thread, which is only allocated the first
+    // time or when a larger one is needed.
+    private static int[] getBuffer(ThreadLocal<int[]> local, int length) {
+        int[] buffer = local.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new int[length];
+            local.set(buffer);
+        }
+        return buffer;
+    }
+
     public void recycle() {
-        if (mRecycled) return;
-        mRecycled = true;
-        for (Bitmap bitmap : mMipmaps) {
-            BitmapUtils.recycleSilently(bitmap);
+        // The mipmaps are given back to the shared pool, so the next image
+        // of the same size can reuse them. A level being built is recycled
+        // by acquireMipmap(), and a level being read by releaseMipmap().
+        BitmapPool pool = BitmapPool.getPool(BitmapPool.TYPE_SHARED);
+        synchronized (mMipmaps) {
+            if (mRecycled) return;
+            mRecycled = true;
+            for (int i = 0; i < mMipmaps.length; i++) {
+                if (mUseCounts[i] > 0) continue;
+                if (mMipmaps[i] != null) pool.recycle(mMipmaps[i]);
+                mMipmaps[i] = null;
+            }
+            mMipmaps.notifyAll();
         }
         if (mScreenNail != null) {
             mScreenNail.recycle();
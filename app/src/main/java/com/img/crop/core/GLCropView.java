@@ -111,6 +111,13 @@ public class GLCropView extends GLView {
     private RectF mTempRect;
     private RectF mTempOutRect = new RectF();
 
+    // The target of the running animation, applied to mImageView in the GL
+    // thread by render() so the tiles there are decoded ahead of time.
+    private boolean mHasPrefetchTarget;
+    private float mPrefetchCenterX;
+    private float mPrefetchCenterY;
+    private float mPrefetchScale;
+
     private Context mContext;
     private OnCropSizeChangeListener mOnCropSizeChangeListener;
 
@@ -207,6 +214,36 @@ public class GLCropView extends GLView {
         }
     }
 
+    private void setImageViewPrefetchTarget(float centerX, float centerY, float scale) {
+        float inverseX = mImageWidth - centerX;
+        float inverseY = mImageHeight - centerY;
+        TileImageView t = mImageView;
+        int rotation = mImageRotation;
+        switch (rotation) {
+            case 0:
+                t.setPrefetchTarget(centerX, centerY, scale);
+                break;
+            case 90:
+                t.setPrefetchTarget(centerY, inverseX, scale);
+                break;
+            case 180:
+                t.setPrefetchTarget(inverseX, inverseY, scale);
+                break;
+            case 270:
+                t.setPrefetchTarget(inverseY, centerX, scale);
+                break;
+            default:
+                throw new IllegalArgumentException(String.valueOf(rotation));
+        }
+    }
+
+    private void setPrefetchTarget(float centerX, float centerY, float scale) {
+        mPrefetchCenterX = centerX;
+        mPrefetchCenterY = centerY;
+        mPrefetchScale = scale;
+        mHasPrefetchTarget = true;
+    }
+
     @Override
     public void render(GLCanvas canvas) {
         float scale = 1.0f;
@@ -226,6 +263,15 @@ public class GLCropView extends GLView {
             scale = a.getScale();
         }
 
+        // The prefetch target is where the animation ends, drop it once the
+        // animation is done.
+        if (!a.isActive()) mHasPrefetchTarget = false;
+        if (mHasPrefetchTarget) {
+            setImageViewPrefetchTarget(mPrefetchCenterX, mPrefetchCenterY, mPrefetchScale);
+        } else {
+            mImageView.clearPrefetchTarget();
+        }
+
         if (scale > 2f) {
             mImageView.setChangeTextureFilter(GL11.GL_NEAREST);
         } else {
@@ -309,6 +355,7 @@ public class GLCropView extends GLView {
             mStartScale = mCurrMultiScale;
 
             calculateTarget(highlight);
+            setPrefetchTarget(mTargetX, mTargetY, mTargetScale);
             start();
         }
 
@@ -344,6 +391,7 @@ public class GLCropView extends GLView {
             mCurrMultiScale = mTargetScale = scale;
 
             updateTotalScale(mTargetScale);
+            setPrefetchTarget(mTargetX, mTargetY, mTargetScale);
             start();
         }
 
@@ -796,6 +844,7 @@ public class GLCropView extends GLView {
 
             switch (event.getAction() & MotionEvent.ACTION_MASK) {
                 case MotionEvent.ACTION_DOWN: {
+                    mHasPrefetchTarget = false;
                     if (!mMultiPoint) {
                         mReferenceX = event.getX();
                         mReferenceY = event.getY();
@@ -919,6 +968,11 @@ public class GLCropView extends GLView {
 
     }
 
+    // See TileImageView.setTileCache().
+    public void setTileCache(TileCache cache) {
+        mImageView.setTileCache(cache);
+    }
+
     public void setDataModel(TileImageView.Model dataModel, int rotation) {
         if (((rotation / 90) & 0x01) != 0) {
             mImageWidth = dataModel.getImageHeight();
@@ -39,6 +39,8 @@ public class GLImageView extends GLView {
     private static final float MIN_TOUCHMODE_SIZE = 16f;
     private static final int ANIMATION_DURATION = 600;
     private static final int ANIMATION_TRIGGER = 64;
+    // How far ahead of a scroll we prefetch tiles, in milliseconds.
+    private static final int PREFETCH_LOOKAHEAD_MS = 300;
 
     //MAX_SCALE值设置越大，缝隙越明显。图片绘制
     private final float MAX_SCALE = 100.0f;
@@ -73,6 +75,14 @@ public class GLImageView extends GLView {
 
     private boolean mCanOverScroll = true; //是否支持OverScroll
 
+    // The predicted position of the current gesture, applied to mImageView
+    // in the GL thread by render().
+    private boolean mHasPrefetchTarget;
+    private float mPrefetchCenterX;
+    private float mPrefetchCenterY;
+    private float mPrefetchScale;
+    private long mLastScrollTime;
+
     private Context mContext;
 
     public GLImageView(Context context) {
@@ -129,17 +139,56 @@ public class GLImageView extends GLView {
         }
     }
 
+    private void setImageViewPrefetchTarget(float centerX, float centerY, float scale) {
+        float inverseX = mImageWidth - centerX;
+        float inverseY = mImageHeight - centerY;
+        TileImageView t = mImageView;
+        int rotation = mImageRotation;
+        switch (rotation) {
+            case 0:
+                t.setPrefetchTarget(centerX, centerY, scale);
+                break;
+            case 90:
+                t.setPrefetchTarget(centerY, inverseX, scale);
+                break;
+            case 180:
+                t.setPrefetchTarget(inverseX, inverseY, scale);
+                break;
+            case 270:
+                t.setPrefetchTarget(inverseY, centerX, scale);
+                break;
+            default:
+                throw new IllegalArgumentException(String.valueOf(rotation));
+        }
+    }
+
+    private void setPrefetchTarget(float centerX, float centerY, float scale) {
+        mPrefetchCenterX = Utils.clamp(centerX, 0, mImageWidth);
+        mPrefetchCenterY = Utils.clamp(centerY, 0, mImageHeight);
+        mPrefetchScale = scale;
+        mHasPrefetchTarget = true;
+        invalidate();
+    }
+
     @Override
     public void render(GLCanvas canvas) {
         AnimationController a = mAnimation;
         if (a != null && a.isActive()) {
-            a.calculate(AnimationTime.get());
+            // The target of the animation has been reached, stop prefetching
+            // around it.
+            if (!a.calculate(AnimationTime.get())) mHasPrefetchTarget = false;
             mCurrMultiCenterX = a.getCenterX();
             mCurrMultiCenterY = a.getCenterY();
             mCurrMultiScale = a.getScale();
             invalidate();
         }
 
+        if (mHasPrefetchTarget) {
+            setImageViewPrefetchTarget(mPrefetchCenterX, mPrefetchCenterY, mPrefetchScale);
+        } else {
+            mImageView.clearPrefetchTarget();
+        }
+
         setImageViewPosition(mCurrMultiCenterX, mCurrMultiCenterY, mCurrMultiScale);
         if (mCurrMultiScale > 2f) {
             mImageView.setChangeTextureFilter(GL11.GL_NEAREST);
@@ -189,6 +238,7 @@ public class GLImageView extends GLView {
             mTargetX = centerX;
             mTargetY = centerY;
             mTargetScale = scale;
+            setPrefetchTarget(centerX, centerY, scale);
 
             start();
             invalidate();
@@ -249,6 +299,11 @@ public class GLImageView extends GLView {
 
     }
 
+    // See TileImageView.setTileCache().
+    public void setTileCache(TileCache cache) {
+        mImageView.setTileCache(cache);
+    }
+
     public void setDataModel(TileImageView.Model dataModel, int rotation) {
         if (((rotation / 90) & 0x01) != 0) {
             mImageWidth = dataModel.getImageHeight();
@@ -299,6 +354,15 @@ public class GLImageView extends GLView {
         public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
             onMoving(distanceX, distanceY);
             Log.i("aaa", "==========distanceX=" + distanceX + "    distanceY=" + distanceY);
+            long now = e2.getEventTime();
+            long elapsed = now - mLastScrollTime;
+            mLastScrollTime = now;
+            if (elapsed > 0 && elapsed < PREFETCH_LOOKAHEAD_MS) {
+                // Extrapolate the scroll velocity to where we are heading.
+                float ahead = (float) PREFETCH_LOOKAHEAD_MS / elapsed / mCurrMultiScale;
+                setPrefetchTarget(mCurrMultiCenterX + distanceX * ahead,
+                        mCurrMultiCenterY + distanceY * ahead, mCurrMultiScale);
+            }
             invalidate();
             return super.onScroll(e1, e2, distanceX, distanceY);
         }
@@ -315,6 +379,8 @@ public class GLImageView extends GLView {
             Log.i("aaa", "************mFlingDelX=" + mFlingDelX + "    mFlingDelY==" + mFlingDelY);
             Log.i("aaa", "************delX=" + (e2.getX() - e1.getX()) + "    delY==" + (e2.getY() - e1.getY()));
             mFlingMove = true;
+            setPrefetchTarget(mCurrMultiCenterX - mFlingDelX / mCurrMultiScale,
+                    mCurrMultiCenterY - mFlingDelY / mCurrMultiScale, mCurrMultiScale);
             return super.onFling(e1, e2, velocityX, velocityY);
         }
 
@@ -400,6 +466,8 @@ public class GLImageView extends GLView {
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
                 mFlingMove = false;
+                mHasPrefetchTarget = false;
+                mLastScrollTime = 0;
                 if (mAnimation != null) {
                     mAnimation.forceStop();
                 }
@@ -408,6 +476,12 @@ public class GLImageView extends GLView {
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_CANCEL:
                 startRollBackAnimIfNeed();
+                // The image stays where the gesture left it, unless it
+                // is animated back into place.
+                if (mAnimation == null || !mAnimation.isActive()) {
+                    mHasPrefetchTarget = false;
+                    invalidate();
+                }
                 break;
         }
 
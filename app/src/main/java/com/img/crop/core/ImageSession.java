@@ -0,0 +1,249 @@
+package com.img.crop.core;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.img.crop.thdpool.Future;
+import com.img.crop.thdpool.ThreadPool;
+import com.img.crop.thdpool.ThreadPool.Job;
+import com.img.crop.thdpool.ThreadPool.JobContext;
+import com.img.crop.utils.DecodeUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// A decoded image shared by the activities showing it, e.g. the
+// ImageViewActivity and the crop activity started from it. A session holds
+// the region decoders, the screennail bitmap and a TileCache of the image,
+// so the second activity does not decode anything before it can draw.
+//
+// Sessions are reference counted and keyed by the fingerprint of the file
+// (TileDiskCache.getSourceKey()). A session nobody holds is released after
+// IDLE_TIMEOUT, or at once when the system asks us to trim memory.
+public class ImageSession {
+    private static final String TAG = "ImageSession";
+
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+    private static final int TILE_CACHE_HEAP_FRACTION = 16;
+
+    // Guarded by ImageSession.class, as are the reference counts.
+    private static final HashMap<Long, ImageSession> sSessions =
+            new HashMap<Long, ImageSession>();
+    private static Handler sHandler;
+    private static boolean sCallbacksRegistered;
+
+    private final long mKey;
+    private final BitmapRegionDecoder mRegionDecoder;
+    private final Bitmap mScreenNail;
+    private final TileCache mTileCache;
+    private int mRefCount = 1;
+
+    // The decoders opened on the image, the primary one first, and the
+    // adapters using them. Guarded by ImageSession.this.
+    private final ArrayList<BitmapRegionDecoder> mDecoders =
+            new ArrayList<BitmapRegionDecoder>();
+    private final ArrayList<TileImageViewAdapter> mAdapters =
+            new ArrayList<TileImageViewAdapter>();
+    private Future<Void> mOpenDecodersTask;
+    private boolean mRecycled;
+
+    private final Runnable mIdleRelease = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ImageSession.class) {
+                if (mRefCount > 0 || sSessions.get(mKey) != ImageSession.this) return;
+                sSessions.remove(mKey);
+            }
+            recycle();
+        }
+    };
+
+    // Returns the session of filePath with a new reference, or null if
+    // there is none.
+    public static ImageSession acquire(String filePath) {
+        long key = TileDiskCache.getSourceKey(filePath);
+        synchronized (ImageSession.class) {
+            ImageSession session = sSessions.get(key);
+            if (session == null) return null;
+            if (session.mRefCount++ == 0) {
+                getHandler().removeCallbacks(session.mIdleRelease);
+            }
+            return session;
+        }
+    }
+
+    // Registers the session of a newly loaded image and returns it with one
+    // reference. It takes the ownership of the decoder and the screennail,
+    // and opens extraDecoderCount more decoders in the background. If a
+    // session of the file has been created meanwhile, ours is dropped and
+    // the existing one is returned.
+    public static ImageSession create(Context context, String filePath,
+            BitmapRegionDecoder decoder, Bitmap screenNail, int extraDecoderCount) {
+        ImageSession session = acquire(filePath);
+        if (session != null) {
+            decoder.recycle();
+            screenNail.recycle();
+            return session;
+        }
+        registerCallbacks(context);
+        session = new ImageSession(TileDiskCache.getSourceKey(filePath), decoder,
+                screenNail, TileImageView.getHeapBudget(context, TILE_CACHE_HEAP_FRACTION));
+        synchronized (ImageSession.class) {
+            sSessions.put(session.mKey, session);
+        }
+        session.openExtraRegionDecoders(filePath, extraDecoderCount);
+        return session;
+    }
+
+    private ImageSession(long key, BitmapRegionDecoder decoder,
+            Bitmap screenNail, long tileCacheBytes) {
+        mKey = key;
+        mRegionDecoder = decoder;
+        mScreenNail = screenNail;
+        mTileCache = new TileCache(tileCacheBytes, TileImageView.getTilePool());
+        mDecoders.add(decoder);
+    }
+
+    public BitmapRegionDecoder getRegionDecoder() {
+        return mRegionDecoder;
+    }
+
+    // The decoders opened so far, the primary one first.
+    public synchronized List<BitmapRegionDecoder> getRegionDecoders() {
+        return new ArrayList<BitmapRegionDecoder>(mDecoders);
+    }
+
+    // The bitmap stays owned by the session, do not recycle it.
+    public Bitmap getScreenNail() {
+        return mScreenNail;
+    }
+
+    // The cache to share between the views of this image, see
+    // TileImageView.setTileCache().
+    public TileCache getTileCache() {
+        return mTileCache;
+    }
+
+    // Lets the adapter decode its tiles with the decoders of this session,
+    // including the ones opened later. The adapter must have its screennail
+    // set already. Call detach() before the adapter is dropped.
+    public synchronized void attach(TileImageViewAdapter adapter) {
+        if (mRecycled) return;
+        adapter.setRegionDecoder(mRegionDecoder);
+        for (int i = 1, n = mDecoders.size(); i < n; i++) {
+            adapter.addSharedRegionDecoder(mRegionDecoder, mDecoders.get(i));
+        }
+        mAdapters.add(adapter);
+    }
+
+    public synchronized void detach(TileImageViewAdapter adapter) {
+        mAdapters.remove(adapter);
+    }
+
+    // Drops the reference returned by acquire() or create().
+    public void release() {
+        synchronized (ImageSession.class) {
+            if (--mRefCount > 0) return;
+            getHandler().postDelayed(mIdleRelease, IDLE_TIMEOUT);
+        }
+    }
+
+    // Releases the sessions nobody holds now, without waiting for the
+    // idle timeout.
+    public static void releaseIdleSessions() {
+        ArrayList<ImageSession> idle = new ArrayList<ImageSession>();
+        synchronized (ImageSession.class) {
+            for (ImageSession session : sSessions.values()) {
+                if (session.mRefCount == 0) idle.add(session);
+            }
+            for (ImageSession session : idle) {
+                sSessions.remove(session.mKey);
+                getHandler().removeCallbacks(session.mIdleRelease);
+            }
+        }
+        for (ImageSession session : idle) {
+            session.recycle();
+        }
+    }
+
+    private void openExtraRegionDecoders(final String filePath, final int count) {
+        if (count <= 0) return;
+        synchronized (this) {
+            mOpenDecodersTask = ThreadPool.getInstance().submit(new Job<Void>() {
+                @Override
+                public Void run(JobContext jc) {
+                    for (int i = 0; i < count && !jc.isCancelled(); i++) {
+                        BitmapRegionDecoder decoder = DecodeUtils
+                                .createBitmapRegionDecoder(jc, filePath, false);
+                        if (decoder == null) break;
+                        if (!addRegionDecoder(decoder)) {
+                            decoder.recycle();
+                            break;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    private synchronized boolean addRegionDecoder(BitmapRegionDecoder decoder) {
+        if (mRecycled) return false;
+        mDecoders.add(decoder);
+        for (TileImageViewAdapter adapter : mAdapters) {
+            adapter.addSharedRegionDecoder(mRegionDecoder, decoder);
+        }
+        return true;
+    }
+
+    private void recycle() {
+        synchronized (this) {
+            mRecycled = true;
+            if (mOpenDecodersTask != null) {
+                mOpenDecodersTask.cancel();
+                mOpenDecodersTask = null;
+            }
+            for (BitmapRegionDecoder decoder : mDecoders) {
+                decoder.recycle();
+            }
+            mDecoders.clear();
+            mAdapters.clear();
+        }
+        mScreenNail.recycle();
+        Log.d(TAG, "release " + Long.toHexString(mKey) + ", " + mTileCache);
+        mTileCache.clear();
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) sHandler = new Handler(Looper.getMainLooper());
+        return sHandler;
+    }
+
+    private static synchronized void registerCallbacks(Context context) {
+        if (sCallbacksRegistered) return;
+        sCallbacksRegistered = true;
+        context.getApplicationContext().registerComponentCallbacks(
+                new ComponentCallbacks2() {
+                    @Override
+                    public void onTrimMemory(int level) {
+                        releaseIdleSessions();
+                    }
+
+                    @Override
+                    public void onConfigurationChanged(Configuration newConfig) {
+                    }
+
+                    @Override
+                    public void onLowMemory() {
+                        releaseIdleSessions();
+                    }
+                });
+    }
+}
@@ -1,82 +1,218 @@
 package com.img.crop.core;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 
 import com.img.crop.utils.Utils;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 public class TileBitmapPool {
     @SuppressWarnings("unused")
     private static final String TAG = "BitmapPool";
 
-    private final ArrayList<Bitmap> mPool;
-    private final int mPoolLimit;
+    // The pooled bitmaps grouped by (width, height, config). The map is in
+    // access order, so the first bucket is the least recently used one and
+    // we evict from it when the pool grows over mMaxBytes.
+    private final LinkedHashMap<SizeKey, ArrayDeque<Bitmap>> mBuckets =
+            new LinkedHashMap<SizeKey, ArrayDeque<Bitmap>>(16, 0.75f, true);
+    // To prevent allocating a key for every lookup, we reuse this one.
+    private final SizeKey mLookupKey = new SizeKey();
+
+    private final long mMaxBytes;
+    private long mBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
 
     // mOneSize is true if the pool can only cache Bitmap with one size.
     private final boolean mOneSize;
     private final int mWidth, mHeight;  // only used if mOneSize is true
 
-    // Construct a BitmapPool which caches bitmap with the specified size.
-    public TileBitmapPool(int width, int height, int poolLimit) {
+    // Construct a BitmapPool which caches bitmap with the specified size,
+    // holding at most maxBytes bytes of bitmaps.
+    public TileBitmapPool(int width, int height, long maxBytes) {
         mWidth = width;
         mHeight = height;
-        mPoolLimit = poolLimit;
-        mPool = new ArrayList<Bitmap>(poolLimit);
+        mMaxBytes = maxBytes;
         mOneSize = true;
     }
 
     // Construct a BitmapPool which caches bitmap with any size;
-    public TileBitmapPool(int poolLimit) {
+    public TileBitmapPool(long maxBytes) {
         mWidth = -1;
         mHeight = -1;
-        mPoolLimit = poolLimit;
-        mPool = new ArrayList<Bitmap>(poolLimit);
+        mMaxBytes = maxBytes;
         mOneSize = false;
     }
 
     // Get a Bitmap from the pool.
-    public synchronized Bitmap getBitmap() {
+    public Bitmap getBitmap() {
         Utils.assertTrue(mOneSize);
-        int size = mPool.size();
-        return size > 0 ? mPool.remove(size - 1) : null;
+        return get(mWidth, mHeight, Config.ARGB_8888);
     }
 
     // Get a Bitmap from the pool with the specified size.
-    public synchronized Bitmap getBitmap(int width, int height) {
+    public Bitmap getBitmap(int width, int height) {
         Utils.assertTrue(!mOneSize);
-        for (int i = mPool.size() - 1; i >= 0; i--) {
-            Bitmap b = mPool.get(i);
-            if (b.getWidth() == width && b.getHeight() == height) {
-                return mPool.remove(i);
-            }
+        return get(width, height, Config.ARGB_8888);
+    }
+
+    // Get a Bitmap from the pool with the specified size and config.
+    public Bitmap getBitmap(int width, int height, Config config) {
+        Utils.assertTrue(!mOneSize || (width == mWidth && height == mHeight));
+        return get(width, height, config);
+    }
+
+    private synchronized Bitmap get(int width, int height, Config config) {
+        ArrayDeque<Bitmap> bucket = mBuckets.get(mLookupKey.set(width, height, config));
+        Bitmap bitmap = bucket == null ? null : bucket.pollLast();
+        if (bitmap == null) {
+            ++mMissCount;
+            return null;
         }
-        return null;
+        ++mHitCount;
+        mBytes -= getBytes(bitmap);
+        return bitmap;
     }
 
     // Put a Bitmap into the pool, if the Bitmap has a proper size. Otherwise
-    // the Bitmap will be recycled. If the pool is full, an old Bitmap will be
-    // recycled.
+    // the Bitmap will be recycled. If the pool is full, the least recently
+    // used Bitmaps will be recycled.
     public void recycle(Bitmap bitmap) {
-        if (bitmap == null) return;
-        if (mOneSize && ((bitmap.getWidth() != mWidth) ||
-                (bitmap.getHeight() != mHeight))) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if ((mOneSize && ((bitmap.getWidth() != mWidth) ||
+                (bitmap.getHeight() != mHeight))) || !bitmap.isMutable()
+                || getBytes(bitmap) > mMaxBytes) {
             bitmap.recycle();
             return;
         }
         synchronized (this) {
-            if (mPool.size() >= mPoolLimit) mPool.remove(0);
-            mPool.add(bitmap);
+            SizeKey key = mLookupKey.set(
+                    bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<Bitmap>();
+                mBuckets.put(key.clone(), bucket);
+            }
+            bucket.addLast(bitmap);
+            mBytes += getBytes(bitmap);
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    // Recycles the least recently used bitmaps until the pool holds no more
+    // than maxBytes bytes.
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<SizeKey, ArrayDeque<Bitmap>>> it =
+                mBuckets.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            ArrayDeque<Bitmap> bucket = it.next().getValue();
+            while (mBytes > maxBytes && !bucket.isEmpty()) {
+                Bitmap bitmap = bucket.pollFirst();
+                mBytes -= getBytes(bitmap);
+                ++mEvictionCount;
+                bitmap.recycle();
+            }
+            if (bucket.isEmpty()) it.remove();
+        }
+    }
+
+    // Called from ComponentCallbacks2.onTrimMemory().
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
         }
     }
 
     public synchronized void clear() {
-        mPool.clear();
+        trimToSize(0);
     }
 
     public boolean isOneSize() {
         return mOneSize;
     }
 
+    // The size of the bitmaps of a one-size pool, -1 otherwise.
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getMaxSize() {
+        return mMaxBytes;
+    }
+
+    // The number of bytes held by the pooled bitmaps.
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TileBitmapPool(%d/%d bytes, hit=%d, miss=%d, evict=%d)",
+                mBytes, mMaxBytes, mHitCount, mMissCount, mEvictionCount);
+    }
+
+    private static int getBytes(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static class SizeKey implements Cloneable {
+        public int width;
+        public int height;
+        public Config config;
+
+        public SizeKey set(int w, int h, Config c) {
+            width = w;
+            height = h;
+            config = c;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            int x = width * 31 + height;
+            return config == null ? x : x * 31 + config.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof SizeKey)) return false;
+            SizeKey o = (SizeKey) object;
+            return width == o.width && height == o.height && config == o.config;
+        }
+
+        @Override
+        public SizeKey clone() {
+            try {
+                return (SizeKey) super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
 }
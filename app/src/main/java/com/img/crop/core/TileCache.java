@@ -0,0 +1,121 @@
+package com.img.crop.core;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps the bitmaps of recently recycled tiles, so a tile which comes back
+// soon (e.g. zooming out and in again) is uploaded from memory instead of
+// being decoded again. It sits between TileImageView.recycleTile() and the
+// TileBitmapPool: the least recently used bitmaps are given to the pool
+// when the cache grows over its byte limit.
+public class TileCache {
+    @SuppressWarnings("unused")
+    private static final String TAG = "TileCache";
+
+    // Tile key -> decoded bitmap, in access order.
+    private final LinkedHashMap<Long, Bitmap> mBitmaps =
+            new LinkedHashMap<Long, Bitmap>(32, 0.75f, true);
+    private final TileBitmapPool mPool;
+
+    private long mMaxBytes;
+    private long mBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    // The evicted bitmaps are recycled into pool, which may be null.
+    public TileCache(long maxBytes, TileBitmapPool pool) {
+        mMaxBytes = maxBytes;
+        mPool = pool;
+    }
+
+    public synchronized void setMaxSize(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    // Takes the ownership of the bitmap.
+    public void put(long key, Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if (getBytes(bitmap) > mMaxBytes) {
+            recycle(bitmap);
+            return;
+        }
+        synchronized (this) {
+            Bitmap old = mBitmaps.put(key, bitmap);
+            mBytes += getBytes(bitmap);
+            if (old != null && old != bitmap) {
+                mBytes -= getBytes(old);
+                recycle(old);
+            }
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    // Removes and returns the bitmap of the tile, or null if it is not
+    // cached. The caller owns the returned bitmap.
+    public synchronized Bitmap remove(long key) {
+        Bitmap bitmap = mBitmaps.remove(key);
+        if (bitmap == null) {
+            ++mMissCount;
+            return null;
+        }
+        ++mHitCount;
+        mBytes -= getBytes(bitmap);
+        return bitmap;
+    }
+
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Long, Bitmap>> it = mBitmaps.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Bitmap bitmap = it.next().getValue();
+            it.remove();
+            mBytes -= getBytes(bitmap);
+            recycle(bitmap);
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    // The ratio of remove() calls which found the tile, used to tune the
+    // size of the cache.
+    public synchronized float getHitRatio() {
+        int total = mHitCount + mMissCount;
+        return total == 0 ? 0f : (float) mHitCount / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TileCache(%d/%d bytes, hit=%d, miss=%d, ratio=%.2f)",
+                mBytes, mMaxBytes, mHitCount, mMissCount, getHitRatio());
+    }
+
+    private void recycle(Bitmap bitmap) {
+        if (mPool != null) {
+            mPool.recycle(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    private static int getBytes(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,287 @@
+package com.img.crop.core;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.WindowManager;
+
+import com.img.crop.thdpool.ThreadPool;
+import com.img.crop.thdpool.ThreadPool.Job;
+import com.img.crop.thdpool.ThreadPool.JobContext;
+import com.img.crop.utils.ApiHelper;
+import com.img.crop.utils.BitmapUtils;
+import com.img.crop.utils.CropBusiness;
+import com.img.crop.utils.DecodeUtils;
+
+// Chooses the tile size for this device. When an image is opened, calibrate()
+// decodes a few regions of it with each candidate size, and combines the
+// decode time with the upload time measured by TileImageView to estimate how
+// long it takes to make a whole screen sharp. The best size and a tile pool
+// limit fitting it are kept in the preferences, and used by TileImageView and
+// CropBusiness.drawInTiles() from then on.
+//
+// Nothing is kept until TileImageView has recorded an upload cost (after the
+// first image is closed) and an image is large enough to measure at least
+// two sizes, so the calibration runs again on the next images until then.
+//
+// Once calibrated, the same tiles are also decoded in RGB_565 and compared
+// with the ARGB_8888 ones, and the upload costs of both configs are kept, to
+// measure what the opaque tile mode (KEY_OPAQUE_TILE_MODE) gains and loses.
+//
+// The result is dropped when the system is updated (Build.FINGERPRINT).
+public class TileCalibration {
+    private static final String TAG = "TileCalibration";
+
+    private static final String PREFS_NAME = "tile_calibration";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_TILE_SIZE = "tile_size";
+    private static final String KEY_POOL_LIMIT = "pool_limit";
+    private static final String KEY_UPLOAD_COST = "upload_nanos_per_pixel";
+    private static final String KEY_UPLOAD_COST_565 = "upload_nanos_per_pixel_565";
+    private static final String KEY_PSNR_565 = "psnr_565";
+
+    // The candidate tile sizes, not including the borders.
+    private static final int TILE_SIZES[] = {254, 510, 1022};
+    private static final int TILE_BORDER = 1;
+    private static final int SAMPLE_COUNT = 3;
+    // The tile pool keeps two levels of a screen, plus some spare tiles.
+    private static final float POOL_SCREENS = 2.5f;
+
+    private static TileCalibration sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private boolean mCalibrating;
+
+    public static synchronized TileCalibration getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TileCalibration(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private TileCalibration(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(mPrefs.getString(KEY_FINGERPRINT, null))) {
+            mPrefs.edit().clear()
+                    .putString(KEY_FINGERPRINT, Build.FINGERPRINT).commit();
+        }
+    }
+
+    public synchronized boolean isCalibrated() {
+        return mPrefs.contains(KEY_TILE_SIZE);
+    }
+
+    // Returns the tile size (without the borders) to use on this device.
+    public synchronized int getTileSize() {
+        int size = mPrefs.getInt(KEY_TILE_SIZE, 0);
+        if (size > 0) return size;
+        return CropBusiness.isHighResolution(mContext) ? 510 : 254;
+    }
+
+    // Returns the byte limit of the tile pool, or defaultLimit if we are
+    // not calibrated yet.
+    public synchronized long getTilePoolLimit(long defaultLimit) {
+        return mPrefs.getLong(KEY_POOL_LIMIT, defaultLimit);
+    }
+
+    // Called by TileImageView with the average time to upload a tile of the
+    // config. Only the ARGB_8888 cost is used to choose the tile size.
+    public synchronized void recordUploadCost(Config config, long nanos, int bitmapSize) {
+        if (nanos <= 0 || bitmapSize <= 0) return;
+        String key = config == Config.RGB_565 ? KEY_UPLOAD_COST_565 : KEY_UPLOAD_COST;
+        mPrefs.edit().putFloat(key, (float) nanos / (bitmapSize * bitmapSize)).apply();
+        if (mPrefs.contains(KEY_UPLOAD_COST) && mPrefs.contains(KEY_UPLOAD_COST_565)) {
+            Log.d(TAG, "upload per pixel: ARGB_8888 " + mPrefs.getFloat(KEY_UPLOAD_COST, 0f)
+                    + "ns, RGB_565 " + mPrefs.getFloat(KEY_UPLOAD_COST_565, 0f)
+                    + "ns, RGB_565 PSNR " + mPrefs.getFloat(KEY_PSNR_565, 0f) + "dB");
+        }
+    }
+
+    // Runs the calibration on filePath in the background, if it has not
+    // been done on this device.
+    public void calibrateIfNeeded(final String filePath) {
+        synchronized (this) {
+            if (mCalibrating || isCalibrated()) return;
+            mCalibrating = true;
+        }
+        ThreadPool.getInstance().submit(new Job<Void>() {
+            @Override
+            public Void run(JobContext jc) {
+                try {
+                    calibrate(jc, filePath);
+                } finally {
+                    synchronized (TileCalibration.this) {
+                        mCalibrating = false;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private void calibrate(JobContext jc, String filePath) {
+        BitmapRegionDecoder decoder =
+                DecodeUtils.createBitmapRegionDecoder(jc, filePath, false);
+        if (decoder == null) return;
+
+        DisplayMetrics metrics = new DisplayMetrics();
+        WindowManager wm = (WindowManager)
+                mContext.getSystemService(Context.WINDOW_SERVICE);
+        wm.getDefaultDisplay().getMetrics(metrics);
+
+        float uploadCost;
+        synchronized (this) {
+            uploadCost = mPrefs.getFloat(KEY_UPLOAD_COST, 0f);
+        }
+        // Without the upload time the decode time alone would pick the size.
+        if (uploadCost <= 0) {
+            decoder.recycle();
+            Log.d(TAG, "no upload cost yet, not calibrating");
+            return;
+        }
+
+        int bestSize = 0;
+        int measuredCount = 0;
+        double bestCost = Double.MAX_VALUE;
+        float psnr = 0f;
+        try {
+            for (int tileSize : TILE_SIZES) {
+                long decodeNanos = measureDecode(jc, decoder, tileSize);
+                if (jc.isCancelled()) return;
+                if (decodeNanos < 0) continue;
+                measuredCount++;
+
+                int bitmapSize = tileSize + 2 * TILE_BORDER;
+                double cost = getTilesPerScreen(metrics, tileSize)
+                        * (decodeNanos + (double) uploadCost * bitmapSize * bitmapSize);
+                Log.d(TAG, "tile " + tileSize + ": decode " + decodeNanos / 1000
+                        + "us, screen " + (long) (cost / 1000) + "us");
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestSize = tileSize;
+                }
+            }
+            if (measuredCount >= 2) {
+                psnr = measureRgb565(jc, decoder, bestSize);
+                if (jc.isCancelled()) return;
+            }
+        } finally {
+            decoder.recycle();
+        }
+        // An image too small for the larger sizes would pick the smallest
+        // one for good.
+        if (measuredCount < 2) {
+            Log.d(TAG, "image too small, measured " + measuredCount + " tile sizes");
+            return;
+        }
+
+        int bitmapSize = bestSize + 2 * TILE_BORDER;
+        long poolLimit = (long) (POOL_SCREENS * getTilesPerScreen(metrics, bestSize)
+                * bitmapSize * bitmapSize * 4);
+        synchronized (this) {
+            mPrefs.edit().putInt(KEY_TILE_SIZE, bestSize)
+                    .putLong(KEY_POOL_LIMIT, poolLimit)
+                    .putFloat(KEY_PSNR_565, psnr).apply();
+        }
+        Log.d(TAG, "calibrated tile size " + bestSize + ", pool " + poolLimit);
+    }
+
+    private static int getTilesPerScreen(DisplayMetrics metrics, int tileSize) {
+        int columns = (metrics.widthPixels + tileSize - 1) / tileSize + 1;
+        int rows = (metrics.heightPixels + tileSize - 1) / tileSize + 1;
+        return columns * rows;
+    }
+
+    // Returns the average time to decode a tile of the size from the center
+    // of the image, or -1 if the image is too small for it.
+    private static long measureDecode(
+            JobContext jc, BitmapRegionDecoder decoder, int tileSize) {
+        return measureDecode(jc, decoder, tileSize, Config.ARGB_8888, null);
+    }
+
+    // Decodes the tiles of measureDecode() in ARGB_8888 and in RGB_565, logs
+    // the decode time of both, and returns the PSNR of the RGB_565 tiles.
+    private static float measureRgb565(
+            JobContext jc, BitmapRegionDecoder decoder, int tileSize) {
+        Bitmap tiles[] = new Bitmap[SAMPLE_COUNT];
+        Bitmap tiles565[] = new Bitmap[SAMPLE_COUNT];
+        try {
+            long nanos = measureDecode(jc, decoder, tileSize, Config.ARGB_8888, tiles);
+            long nanos565 = measureDecode(jc, decoder, tileSize, Config.RGB_565, tiles565);
+            if (nanos < 0 || nanos565 < 0 || jc.isCancelled()) return 0f;
+            double error = 0;
+            long samples = 0;
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                error += BitmapUtils.getSquaredError(tiles[i], tiles565[i]);
+                samples += 3L * tiles[i].getWidth() * tiles[i].getHeight();
+            }
+            // No error at all would be an infinite PSNR.
+            float psnr = (float) (10 * Math.log10(255.0 * 255.0
+                    / Math.max(error / samples, 1e-6)));
+            Log.d(TAG, "tile " + tileSize + ": decode ARGB_8888 " + nanos / 1000
+                    + "us, RGB_565 " + nanos565 / 1000 + "us, RGB_565 PSNR " + psnr + "dB");
+            return psnr;
+        } finally {
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                if (tiles[i] != null) tiles[i].recycle();
+                if (tiles565[i] != null) tiles565[i].recycle();
+            }
+        }
+    }
+
+    // Returns the average time to decode a tile of the size in the config,
+    // or -1 if the image is too small for it. If tiles is not null, the
+    // measured tiles are kept in it, instead of reusing one bitmap.
+    @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+    private static long measureDecode(JobContext jc, BitmapRegionDecoder decoder,
+            int tileSize, Config config, Bitmap[] tiles) {
+        int size = tileSize + 2 * TILE_BORDER;
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        if (width < size * 2 || height < size * 2) return -1;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        options.inPreferQualityOverSpeed = true;
+        jc.setCancelListener(new DecodeUtils.DecodeCanceller(options));
+
+        Rect rect = new Rect();
+        long total = 0;
+        try {
+            // The first decode warms up the decoder and is not counted.
+            for (int i = 0; i <= SAMPLE_COUNT && !jc.isCancelled(); i++) {
+                int x = width / 2 - size + (i % 2) * size;
+                int y = height / 2 - size + (i / 2 % 2) * size;
+                rect.set(x, y, x + size, y + size);
+                long start = System.nanoTime();
+                Bitmap bitmap = decoder.decodeRegion(rect, options);
+                long nanos = System.nanoTime() - start;
+                if (bitmap == null) return -1;
+                if (tiles != null && i > 0) {
+                    tiles[i - 1] = bitmap;
+                } else if (tiles != null) {
+                    bitmap.recycle();
+                } else if (ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER) {
+                    options.inBitmap = bitmap;
+                } else {
+                    bitmap.recycle();
+                }
+                if (i > 0) total += nanos;
+            }
+        } finally {
+            jc.setCancelListener(null);
+            if (options.inBitmap != null) options.inBitmap.recycle();
+        }
+        return total / SAMPLE_COUNT;
+    }
+}
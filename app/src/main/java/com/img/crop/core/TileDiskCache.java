@@ -0,0 +1,337 @@
+package com.img.crop.core;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.img.crop.thdpool.ThreadPool;
+import com.img.crop.thdpool.ThreadPool.Job;
+import com.img.crop.thdpool.ThreadPool.JobContext;
+import com.img.crop.utils.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A persistent cache of decoded tiles. The tiles are stored as raw pixels
+// after a small header, so loading a tile is a file read and a
+// copyPixelsFromBuffer() instead of a JPEG decode. Files are evicted in
+// least recently used order when the cache grows over its byte limit.
+//
+// A file is named by the fingerprint of the source image (see
+// getSourceKey()) and the level, position and size of the tile.
+//
+// putTile() only copies the pixels, the file is written by a background
+// job, so storing a tile does not slow down the decoding of the next ones.
+public class TileDiskCache {
+    private static final String TAG = "TileDiskCache";
+
+    private static final String CACHE_DIR = "tiles";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x54494C45; // "TILE"
+    private static final int HEADER_SIZE = 4 * 4;
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    // The tiles waiting to be written, more are dropped. Each one holds a
+    // copy of the pixels until it is written.
+    private static final int MAX_PENDING_WRITES = 4;
+
+    private static TileDiskCache sInstance;
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // File name -> file size, in access order. Guarded by TileDiskCache.this.
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long mBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mDroppedCount;
+
+    // The tiles copied by putTile() for the writer job, the number of them
+    // including the ones being copied, and the buffers of the written ones
+    // for reuse. Guarded by TileDiskCache.this.
+    private final ArrayDeque<PendingWrite> mPendingWrites = new ArrayDeque<PendingWrite>();
+    private int mPendingCount;
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<ByteBuffer>();
+    private boolean mWriterRunning;
+
+    private static class PendingWrite {
+        final String name;
+        final ByteBuffer buffer;
+
+        PendingWrite(String name, ByteBuffer buffer) {
+            this.name = name;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Job<Void> mWriter = new Job<Void>() {
+        @Override
+        public Void run(JobContext jc) {
+            jc.setMode(ThreadPool.MODE_NONE);
+            try {
+                while (true) {
+                    PendingWrite write;
+                    synchronized (TileDiskCache.this) {
+                        write = mPendingWrites.pollFirst();
+                        if (write == null) return null;
+                    }
+                    writeTile(write.name, write.buffer);
+                    synchronized (TileDiskCache.this) {
+                        --mPendingCount;
+                        mFreeBuffers.addLast(write.buffer);
+                    }
+                }
+            } finally {
+                synchronized (TileDiskCache.this) {
+                    mWriterRunning = false;
+                    // A tile queued after the last poll, or left by a failure.
+                    if (!mPendingWrites.isEmpty()) startWriter();
+                }
+            }
+        }
+    };
+
+    // The buffer used to move pixels between the file and the bitmap. Each
+    // decoder thread keeps its own one to avoid allocating for every tile.
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>();
+
+    public static synchronized TileDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TileDiskCache(
+                    new File(context.getCacheDir(), CACHE_DIR), DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    public TileDiskCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        loadEntries();
+    }
+
+    // Returns the fingerprint of an image file. It changes if the file is
+    // modified, so stale tiles are never returned.
+    public static long getSourceKey(String filePath) {
+        File file = new File(filePath);
+        return Utils.crc64Long(filePath + "|" + file.length() + "|" + file.lastModified());
+    }
+
+    private void loadEntries() {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "cannot create " + mDir);
+            return;
+        }
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+
+        // The last modified time is updated when a tile is read, so it
+        // gives the order of the previous session.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Utils.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                    continue;
+                }
+                mEntries.put(file.getName(), file.length());
+                mBytes += file.length();
+            }
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    private static String getName(long sourceKey, int level, int x, int y,
+                                  int tileSize, Bitmap bitmap) {
+        return Long.toHexString(sourceKey) + "_" + level + "_" + x + "_" + y
+                + "_" + tileSize + "_" + bitmap.getConfig().ordinal();
+    }
+
+    // Reads the tile into the given bitmap. The tiles are stored per config,
+    // and the bitmap must have the size the tile was stored with. Returns false if the tile is not cached.
+    public boolean getTile(long sourceKey, int level, int x, int y,
+                           int tileSize, Bitmap bitmap) {
+        String name = getName(sourceKey, level, x, y, tileSize, bitmap);
+        synchronized (this) {
+            if (mEntries.get(name) == null) {
+                ++mMissCount;
+                return false;
+            }
+        }
+
+        File file = new File(mDir, name);
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = getBuffer(HEADER_SIZE + bitmap.getByteCount());
+            buffer.limit(HEADER_SIZE);
+            readFully(channel, buffer);
+            buffer.flip();
+            if (buffer.getInt() != MAGIC
+                    || buffer.getInt() != bitmap.getWidth()
+                    || buffer.getInt() != bitmap.getHeight()
+                    || buffer.getInt() != bitmap.getConfig().ordinal()) {
+                return false;
+            }
+            buffer.clear();
+            buffer.limit(bitmap.getByteCount());
+            readFully(channel, buffer);
+            if (buffer.hasRemaining()) throw new IOException("truncated tile");
+            buffer.flip();
+            bitmap.copyPixelsFromBuffer(buffer);
+            file.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                ++mHitCount;
+            }
+            return true;
+        } catch (Throwable t) {
+            Log.w(TAG, "fail to read tile " + name, t);
+            remove(name);
+            return false;
+        } finally {
+            Utils.closeSilently(fis);
+        }
+    }
+
+    // Copies the tile, which is written to the cache in the background. The
+    // tile is dropped if too many are waiting to be written.
+    public void putTile(long sourceKey, int level, int x, int y,
+                        int tileSize, Bitmap bitmap) {
+        String name = getName(sourceKey, level, x, y, tileSize, bitmap);
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (mEntries.containsKey(name)) return;
+            if (mPendingCount >= MAX_PENDING_WRITES) {
+                ++mDroppedCount;
+                return;
+            }
+            ++mPendingCount;
+            buffer = mFreeBuffers.pollFirst();
+        }
+
+        try {
+            int capacity = HEADER_SIZE + bitmap.getByteCount();
+            if (buffer == null || buffer.capacity() < capacity) {
+                buffer = ByteBuffer.allocateDirect(capacity);
+            }
+            buffer.clear();
+            buffer.putInt(MAGIC);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(bitmap.getConfig().ordinal());
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.flip();
+        } catch (Throwable t) {
+            Log.w(TAG, "fail to copy tile " + name, t);
+            synchronized (this) {
+                --mPendingCount;
+            }
+            return;
+        }
+        synchronized (this) {
+            mPendingWrites.addLast(new PendingWrite(name, buffer));
+            if (!mWriterRunning) startWriter();
+        }
+    }
+
+    private synchronized void startWriter() {
+        mWriterRunning = true;
+        ThreadPool.getInstance().submit(mWriter);
+    }
+
+    // Writes the header and the pixels in buffer to the file of the tile.
+    private void writeTile(String name, ByteBuffer buffer) {
+        File temp = new File(mDir, name + TEMP_SUFFIX);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            fos.close();
+            fos = null;
+            File file = new File(mDir, name);
+            if (!temp.renameTo(file)) throw new IOException("cannot rename " + temp);
+            synchronized (this) {
+                Long old = mEntries.put(name, file.length());
+                if (old != null) mBytes -= old;
+                mBytes += file.length();
+                trimToSize(mMaxBytes);
+            }
+        } catch (Throwable t) {
+            Log.w(TAG, "fail to write tile " + name, t);
+            temp.delete();
+        } finally {
+            Utils.closeSilently(fos);
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) mBytes -= size;
+        new File(mDir, name).delete();
+    }
+
+    private synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            new File(mDir, entry.getKey()).delete();
+            mBytes -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    // The number of tiles not stored because too many were being written.
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private static ByteBuffer getBuffer(int capacity) {
+        ByteBuffer buffer = sBuffer.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            sBuffer.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) break;
+        }
+    }
+}
@@ -1,18 +1,22 @@
 package com.img.crop.core;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
-import android.util.LongSparseArray;
 
 import com.img.crop.utils.ApiHelper;
-import com.img.crop.utils.CropBusiness;
 import com.img.crop.utils.DecodeUtils;
+import com.img.crop.utils.LongHashMap;
 import com.img.crop.glsrender.gl11.GLCanvas;
 import com.img.crop.glsrender.gl11.GLRoot;
 import com.img.crop.glsrender.gl11.GLView;
@@ -25,7 +29,15 @@ import com.img.crop.thdpool.ThreadPool.JobContext;
 import com.img.crop.thdpool.ThreadPool.CancelListener;
 import com.img.crop.utils.Utils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.microedition.khronos.opengles.GL11;
 
@@ -42,9 +54,33 @@ public class TileImageView extends GLView {
     private static int TILE_SIZE;
     private static final int TILE_BORDER = 1;
     private static int BITMAP_SIZE;
-    private static final int UPLOAD_LIMIT = 1;
+    private static final long PRIORITY_DISTANCE_MASK = (1L << 48) - 1;
 
+    // The memory we allow the prefetched tiles to use, in bytes.
+    private static final int DEFAULT_PREFETCH_BUDGET = 8 * 1024 * 1024;
+
+    // The number of TileDecoder workers. The workers only decode in parallel
+    // if the model can serve concurrent getTile() calls, e.g. when
+    // TileImageViewAdapter has extra region decoders opened.
+    public static final int DEFAULT_DECODER_COUNT = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    // The bits of the column and the row in a tile key, see makeTileKey().
+    private static final int TILE_KEY_BITS = 28;
+
+    // The tile pool uses 1/TILE_POOL_HEAP_FRACTION of the heap, unless
+    // TileCalibration has found a better limit, which may not be larger than
+    // 1/MAX_TILE_POOL_HEAP_FRACTION of the heap.
+    private static final int TILE_POOL_HEAP_FRACTION = 8;
+    private static final int MAX_TILE_POOL_HEAP_FRACTION = 4;
     private static TileBitmapPool sTilePool;
+    // The config of the tiles of the last model set, which are the ones
+    // given back to sTilePool.
+    private static volatile Config sTilePoolConfig = Config.ARGB_8888;
+
+    // The recycled tiles whose bitmaps are kept by mTileCache may use
+    // 1/TILE_CACHE_HEAP_FRACTION of the heap.
+    private static final int TILE_CACHE_HEAP_FRACTION = 16;
 
     /*
      *  This is the tile state in the CPU side.
@@ -62,6 +98,10 @@ public class TileImageView extends GLView {
      *      DECODED --> RECYCLED - by recycleTile()
      *      DECODE_FAIL -> RECYCLED - by recycleTile()
      *      RECYCLED --> ACTIVATED - by obtainTile()
+     *
+     *  The transitions are made by compareAndSetState(), so the GL thread
+     *  and the decoder threads never lock each other out to change a state.
+     *  Only the decode and upload queues are guarded by mQueueLock.
      */
     private static final int STATE_ACTIVATED = 0x01;
     private static final int STATE_IN_QUEUE = 0x02;
@@ -71,6 +111,9 @@ public class TileImageView extends GLView {
     private static final int STATE_RECYCLING = 0x20;
     private static final int STATE_RECYCLED = 0x40;
 
+    private static final AtomicIntegerFieldUpdater<Tile> sTileState =
+            AtomicIntegerFieldUpdater.newUpdater(Tile.class, "mTileState");
+
     private Model mModel;
     private ScreenNail mScreenNail;
     protected int mLevelCount;  // cache the value of mScaledBitmaps.length
@@ -88,18 +131,32 @@ public class TileImageView extends GLView {
     private int mOffsetX;
     private int mOffsetY;
 
-    private int mUploadQuota;
     private boolean mRenderComplete;
 
     private final RectF mSourceRect = new RectF();
     private final RectF mTargetRect = new RectF();
 
-    private final LongSparseArray<Tile> mActiveTiles = new LongSparseArray<Tile>();
-
-    // The following three queue is guarded by TileImageView.this
+    // Keyed by makeTileKey(). It is looked up for every tile we draw and
+    // every tile layoutTiles() visits, so it is a hash map, not a
+    // LongSparseArray.
+    private final LongHashMap<Tile> mActiveTiles = new LongHashMap<Tile>();
+    // The cache of this view, or the one of an ImageSession shared with
+    // other views on the same image, see setTileCache().
+    private TileCache mTileCache;
+    private final TileCache mOwnTileCache;
+    private final TileCalibration mCalibration;
+
+    // The decode and upload queues are ordered by getTilePriority(), so the
+    // tiles closest to the center of the view get sharp first. They are
+    // guarded by mQueueLock, use lockQueues() to hold it. The recycled
+    // queue is lock-free.
+    private final ReentrantLock mQueueLock = new ReentrantLock();
+    private final Condition mDecodeQueueNotEmpty = mQueueLock.newCondition();
+    private final AtomicInteger mQueueContendedCount = new AtomicInteger();
+    private final AtomicLong mQueueWaitNanos = new AtomicLong();
     private final TileQueue mRecycledQueue = new TileQueue();
-    private final TileQueue mUploadQueue = new TileQueue();
-    private final TileQueue mDecodeQueue = new TileQueue();
+    private final TilePriorityQueue mUploadQueue = new TilePriorityQueue();
+    private final TilePriorityQueue mDecodeQueue = new TilePriorityQueue();
 
     // The width and height of the full-sized bitmap
     protected int mImageWidth = SIZE_UNKNOWN;
@@ -116,8 +173,36 @@ public class TileImageView extends GLView {
 
     private final TileUploader mTileUploader = new TileUploader();
     private boolean mIsTextureFreed;
-    private Future<Void> mTileDecoder;
+    private final ArrayList<Future<Void>> mTileDecoders =
+            new ArrayList<Future<Void>>();
+    private int mDecoderCount = DEFAULT_DECODER_COUNT;
     private boolean mBackgroundTileUploaded;
+
+    // The position the gesture is heading to. Tiles around it are activated
+    // and decoded ahead of time, up to mPrefetchBudget bytes.
+    private boolean mHasPrefetchTarget;
+    private float mPrefetchCenterX;
+    private float mPrefetchCenterY;
+    private float mPrefetchScale;
+    private int mPrefetchLevel;
+    private final Rect mPrefetchRange = new Rect();
+    private int mPrefetchBudget = DEFAULT_PREFETCH_BUDGET;
+
+    // Prefetch statistics: tiles activated ahead of time, the ones which
+    // were ready when they became visible, and the decoded ones which were
+    // recycled without ever being visible.
+    private int mPrefetchCount;
+    private int mPrefetchHitCount;
+    private int mPrefetchWasteCount;
+
+    // The number of tile decodes which ran to the end, and the ones which
+    // were abandoned because the tile got recycled in the meantime.
+    private final AtomicInteger mDecodeCompleteCount = new AtomicInteger();
+    private final AtomicInteger mDecodeCancelledCount = new AtomicInteger();
+
+    // The time when the displayed tiles first became incomplete, used to
+    // measure how long it takes until the frame is sharp again.
+    private long mSharpPendingTime;
     private boolean mNeedChangeTextureFilter = false;
     private int mChangeTextureFilter = GL11.GL_LINEAR;
 
@@ -131,6 +216,10 @@ public class TileImageView extends GLView {
 
         public int getImageHeight();
 
+        // The config of the bitmaps returned by getTile(). RGB_565 tiles are
+        // drawn without blending.
+        public Config getTileConfig();
+
         // The tile returned by this method can be specified this way: Assuming
         // the image size is (width, height), first take the intersection of (0,
         // 0) - (width, height) and (x, y) - (x + tileSize, y + tileSize). Then
@@ -142,30 +231,129 @@ public class TileImageView extends GLView {
         // the original image (down-scaled by a factor of 2^level), but (x, y)
         // still refers to the coordinate on the original image.
         //
-        // The method would be called in another thread.
-        public Bitmap getTile(int level, int x, int y, int tileSize,
+        // The method would be called in another thread. The decoding should
+        // be abandoned once jc is cancelled, which happens when the tile is
+        // recycled.
+        public Bitmap getTile(JobContext jc, int level, int x, int y, int tileSize,
                               int borderSize, TileBitmapPool pool);
     }
 
     public TileImageView(Context context) {
-        mTileDecoder = ThreadPool.getInstance().submit(new TileDecoder());
+        startTileDecoders();
+        mCalibration = TileCalibration.getInstance(context);
         if (TILE_SIZE == 0) {
-            if (CropBusiness.isHighResolution(context)) {
-                TILE_SIZE = 510;
-            } else {
-                TILE_SIZE = 254;
-            }
+            TILE_SIZE = mCalibration.getTileSize();
             BITMAP_SIZE = TILE_SIZE + TILE_BORDER * 2;
+            long poolLimit = Math.min(
+                    mCalibration.getTilePoolLimit(
+                            getHeapBudget(context, TILE_POOL_HEAP_FRACTION)),
+                    getHeapBudget(context, MAX_TILE_POOL_HEAP_FRACTION));
             sTilePool =
                     ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER
-                            ? new TileBitmapPool(BITMAP_SIZE, BITMAP_SIZE, 128)
+                            ? new TileBitmapPool(BITMAP_SIZE, BITMAP_SIZE, poolLimit)
                             : null;
+            if (sTilePool != null) {
+                context.getApplicationContext().registerComponentCallbacks(
+                        new ComponentCallbacks2() {
+                            @Override
+                            public void onTrimMemory(int level) {
+                                sTilePool.trimMemory(level);
+                            }
+
+                            @Override
+                            public void onConfigurationChanged(Configuration newConfig) {
+                            }
+
+                            @Override
+                            public void onLowMemory() {
+                                sTilePool.clear();
+                            }
+                        });
+            }
+        }
+        mOwnTileCache = new TileCache(getHeapBudget(context, TILE_CACHE_HEAP_FRACTION),
+                sTilePool);
+        mTileCache = mOwnTileCache;
+    }
+
+    // Returns 1/fraction of the heap we are given on this device.
+    static long getHeapBudget(Context context, int fraction) {
+        ActivityManager am = (ActivityManager)
+                context.getSystemService(Context.ACTIVITY_SERVICE);
+        return (long) am.getMemoryClass() * 1024 * 1024 / fraction;
+    }
+
+    public static TileBitmapPool getTilePool() {
+        return sTilePool;
+    }
+
+    // The config of most of the bitmaps in getTilePool().
+    public static Config getTilePoolConfig() {
+        return sTilePoolConfig;
+    }
+
+    // Sets the memory the bitmaps of the recycled tiles may use, in bytes.
+    public void setTileCacheSize(long maxBytes) {
+        mTileCache.setMaxSize(maxBytes);
+    }
+
+    public TileCache getTileCache() {
+        return mTileCache;
+    }
+
+    // Uses the given cache instead of our own one, or our own one again if
+    // cache is null. A shared cache belongs to one source image and is not
+    // cleared by invalidateTiles() or freeTextures(), so the tiles survive
+    // for the next view on that image. Set it before the model of that
+    // image.
+    public void setTileCache(TileCache cache) {
+        if (cache == null) cache = mOwnTileCache;
+        if (cache == mTileCache) return;
+        if (mTileCache == mOwnTileCache) mTileCache.clear();
+        mTileCache = cache;
+    }
+
+    private void clearOwnTileCache() {
+        if (mTileCache == mOwnTileCache) mTileCache.clear();
+    }
+
+    // Sets the number of tiles which can be decoded at the same time.
+    public void setDecoderCount(int count) {
+        count = Math.max(1, count);
+        if (count == mDecoderCount) return;
+        mDecoderCount = count;
+        if (!mTileDecoders.isEmpty()) {
+            stopTileDecoders();
+            startTileDecoders();
+        }
+    }
+
+    public int getDecoderCount() {
+        return mDecoderCount;
+    }
+
+    private void startTileDecoders() {
+        for (int i = mTileDecoders.size(); i < mDecoderCount; i++) {
+            mTileDecoders.add(ThreadPool.getInstance().submit(new TileDecoder()));
         }
     }
 
+    private void stopTileDecoders() {
+        for (Future<Void> decoder : mTileDecoders) {
+            decoder.cancel();
+        }
+        for (Future<Void> decoder : mTileDecoders) {
+            decoder.get();
+        }
+        mTileDecoders.clear();
+    }
+
     public void setModel(Model model) {
         mModel = model;
-        if (model != null) notifyModelInvalidated();
+        if (model != null) {
+            sTilePoolConfig = model.getTileConfig();
+            notifyModelInvalidated();
+        }
     }
 
     public void setScreenNail(ScreenNail s) {
@@ -190,6 +378,48 @@ public class TileImageView extends GLView {
         invalidate();
     }
 
+    // Sets where the current gesture or animation is expected to bring the
+    // view, in the same coordinates as setPosition().
+    public void setPrefetchTarget(float centerX, float centerY, float scale) {
+        if (mHasPrefetchTarget && mPrefetchCenterX == centerX
+                && mPrefetchCenterY == centerY && mPrefetchScale == scale) return;
+        mHasPrefetchTarget = true;
+        mPrefetchCenterX = centerX;
+        mPrefetchCenterY = centerY;
+        mPrefetchScale = scale;
+        layoutTiles(mCenterX, mCenterY, mScale, mRotation);
+    }
+
+    public void clearPrefetchTarget() {
+        if (!mHasPrefetchTarget) return;
+        mHasPrefetchTarget = false;
+        layoutTiles(mCenterX, mCenterY, mScale, mRotation);
+    }
+
+    public void setPrefetchBudget(int bytes) {
+        mPrefetchBudget = Math.max(0, bytes);
+    }
+
+    public int getDecodeCompleteCount() {
+        return mDecodeCompleteCount.get();
+    }
+
+    public int getDecodeCancelledCount() {
+        return mDecodeCancelledCount.get();
+    }
+
+    public int getPrefetchCount() {
+        return mPrefetchCount;
+    }
+
+    public int getPrefetchHitCount() {
+        return mPrefetchHitCount;
+    }
+
+    public int getPrefetchWasteCount() {
+        return mPrefetchWasteCount;
+    }
+
     @Override
     protected void onLayout(
             boolean changeSize, int left, int top, int right, int bottom) {
@@ -244,25 +474,49 @@ public class TileImageView extends GLView {
         // If rotation is transient, don't update the tile.
         if (rotation % 90 != 0) return;
 
-        synchronized (this) {
-            mDecodeQueue.clean();
-            mUploadQueue.clean();
-            mBackgroundTileUploaded = false;
-
-            // Recycle unused tiles: if the level of the active tile is outside the
-            // range [fromLevel, endLevel) or not in the visible range.
-            int n = mActiveTiles.size();
-            for (int i = 0; i < n; i++) {
-                Tile tile = mActiveTiles.valueAt(i);
-                int level = tile.mTileLevel;
-                if (level < fromLevel || level >= endLevel
-                        || !range[level - fromLevel].contains(tile.mX, tile.mY)) {
-                    mActiveTiles.removeAt(i);
-                    i--;
-                    n--;
-                    recycleTile(tile);
-                }
+        // The tiles around the prefetch target, on the level we will use
+        // for display when we get there.
+        boolean prefetch = false;
+        if (mHasPrefetchTarget) {
+            mPrefetchLevel = Utils.clamp(
+                    Utils.floorLog2(1f / mPrefetchScale), 0, mLevelCount);
+            if (mPrefetchLevel < mLevelCount) {
+                getRange(mPrefetchRange, mPrefetchCenterX, mPrefetchCenterY,
+                        mPrefetchLevel, mPrefetchScale, rotation);
+                prefetch = true;
+            }
+        }
+
+        int prefetched = 0;
+        lockQueues();
+        try {
+            mDecodeQueue.reprioritize();
+            mUploadQueue.reprioritize();
+        } finally {
+            mQueueLock.unlock();
+        }
+        mBackgroundTileUploaded = false;
+
+        // Recycle unused tiles: if the level of the active tile is outside the
+        // range [fromLevel, endLevel) or not in the visible range, and it is
+        // not in the prefetch range either.
+        int n = mActiveTiles.size();
+        for (int i = 0; i < n; i++) {
+            Tile tile = mActiveTiles.valueAt(i);
+            int level = tile.mTileLevel;
+            if (level >= fromLevel && level < endLevel
+                    && range[level - fromLevel].contains(tile.mX, tile.mY)) {
+                continue;
             }
+            if (prefetch && tile.mPrefetched && level == mPrefetchLevel
+                    && mPrefetchRange.contains(tile.mX, tile.mY)) {
+                ++prefetched;
+                continue;
+            }
+            mActiveTiles.removeAt(i);
+            i--;
+            n--;
+            recycleTile(tile);
         }
 
         for (int i = fromLevel; i < endLevel; ++i) {
@@ -274,12 +528,39 @@ public class TileImageView extends GLView {
                 }
             }
         }
+
+        if (prefetch) {
+            int limit = mPrefetchBudget / (BITMAP_SIZE * BITMAP_SIZE * 4);
+            int size = TILE_SIZE << mPrefetchLevel;
+            Rect r = mPrefetchRange;
+            for (int y = r.top; y < r.bottom && prefetched < limit; y += size) {
+                for (int x = r.left; x < r.right && prefetched < limit; x += size) {
+                    if (prefetchTile(x, y, mPrefetchLevel)) ++prefetched;
+                }
+            }
+        }
         invalidate();
     }
 
-    protected synchronized void invalidateTiles() {
-        mDecodeQueue.clean();
-        mUploadQueue.clean();
+    private boolean prefetchTile(int x, int y, int level) {
+        long key = makeTileKey(x, y, level);
+        if (mActiveTiles.get(key) != null) return false;
+        Tile tile = obtainTile(x, y, level);
+        tile.mPrefetched = true;
+        mActiveTiles.put(key, tile);
+        ++mPrefetchCount;
+        if (!loadFromTileCache(tile, key)) queueForDecode(tile);
+        return true;
+    }
+
+    protected void invalidateTiles() {
+        lockQueues();
+        try {
+            mDecodeQueue.clean();
+            mUploadQueue.clean();
+        } finally {
+            mQueueLock.unlock();
+        }
 
         // TODO disable decoder
         int n = mActiveTiles.size();
@@ -288,6 +569,8 @@ public class TileImageView extends GLView {
             recycleTile(tile);
         }
         mActiveTiles.clear();
+        // The cached bitmaps belong to the previous model.
+        clearOwnTileCache();
     }
 
     private void getRange(Rect out, float cX, float cY, int level, int rotation) {
@@ -368,11 +651,7 @@ public class TileImageView extends GLView {
     public void freeTextures() {
         mIsTextureFreed = true;
 
-        if (mTileDecoder != null) {
-            mTileDecoder.cancel();
-            mTileDecoder.get();
-            mTileDecoder = null;
-        }
+        stopTileDecoders();
 
         int n = mActiveTiles.size();
         for (int i = 0; i < n; i++) {
@@ -382,23 +661,45 @@ public class TileImageView extends GLView {
         mActiveTiles.clear();
         mTileRange.set(0, 0, 0, 0);
 
-        synchronized (this) {
+        lockQueues();
+        try {
             mUploadQueue.clean();
             mDecodeQueue.clean();
-            Tile tile = mRecycledQueue.pop();
-            while (tile != null) {
-                tile.recycle();
-                tile = mRecycledQueue.pop();
-            }
+        } finally {
+            mQueueLock.unlock();
+        }
+        Tile tile = mRecycledQueue.pop();
+        while (tile != null) {
+            tile.recycle();
+            tile = mRecycledQueue.pop();
         }
         setScreenNail(null);
-        if (sTilePool != null) sTilePool.clear();
+        Log.d(TAG, mTileCache.toString());
+        clearOwnTileCache();
+        if (sTilePool != null) {
+            Log.d(TAG, sTilePool.toString());
+            sTilePool.clear();
+        }
+        Log.d(TAG, "decode: " + mDecodeCompleteCount.get() + " completed, "
+                + mDecodeCancelledCount.get() + " cancelled");
+        if (mPrefetchCount > 0) {
+            Log.d(TAG, "prefetch: " + mPrefetchCount + " tiles, "
+                    + mPrefetchHitCount + " hits, " + mPrefetchWasteCount + " wasted");
+        }
+        Log.d(TAG, "queue lock: " + mQueueContendedCount.get() + " contended, "
+                + mQueueWaitNanos.get() / 1000 + "us waited");
+        if (mModel != null) {
+            Log.d(TAG, "tiles: " + mModel.getTileConfig() + ", upload "
+                    + UploadedTexture.getUploadCost() / 1000 + "us per tile");
+        }
+        if (mDecodeCompleteCount.get() > 0) {
+            mCalibration.recordUploadCost(mModel == null ? Config.ARGB_8888
+                    : mModel.getTileConfig(), UploadedTexture.getUploadCost(), BITMAP_SIZE);
+        }
     }
 
     public void prepareTextures() {
-        if (mTileDecoder == null) {
-            mTileDecoder = ThreadPool.getInstance().submit(new TileDecoder());
-        }
+        if (mTileDecoders.isEmpty()) startTileDecoders();
         if (mIsTextureFreed) {
             layoutTiles(mCenterX, mCenterY, mScale, mRotation);
             mIsTextureFreed = false;
@@ -408,7 +709,6 @@ public class TileImageView extends GLView {
 
     @Override
     protected void render(GLCanvas canvas) {
-        mUploadQuota = UPLOAD_LIMIT;
         mRenderComplete = true;
 
         int level = mLevel;
@@ -470,8 +770,15 @@ public class TileImageView extends GLView {
         }
 
         if (mRenderComplete) {
+            if (mSharpPendingTime != 0) {
+                Log.d(TAG, "sharp frame in "
+                        + (SystemClock.uptimeMillis() - mSharpPendingTime)
+                        + "ms with " + mDecoderCount + " decoders");
+                mSharpPendingTime = 0;
+            }
             if (!mBackgroundTileUploaded) uploadBackgroundTiles(canvas);
         } else {
+            if (mSharpPendingTime == 0) mSharpPendingTime = SystemClock.uptimeMillis();
             invalidate();
         }
     }
@@ -489,44 +796,74 @@ public class TileImageView extends GLView {
         }
     }
 
+    // Locks mQueueLock, counting how often and how long we had to wait for
+    // another thread to release it.
+    private void lockQueues() {
+        if (mQueueLock.tryLock()) return;
+        long start = System.nanoTime();
+        mQueueLock.lock();
+        mQueueContendedCount.incrementAndGet();
+        mQueueWaitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    public int getQueueContendedCount() {
+        return mQueueContendedCount.get();
+    }
+
+    public long getQueueWaitNanos() {
+        return mQueueWaitNanos.get();
+    }
+
+    private static boolean compareAndSetState(Tile tile, int expect, int update) {
+        return sTileState.compareAndSet(tile, expect, update);
+    }
+
     void queueForUpload(Tile tile) {
-        synchronized (this) {
+        lockQueues();
+        try {
+            // The tile may have been recycled after it was decoded.
+            if (tile.mTileState != STATE_DECODED) return;
             mUploadQueue.push(tile);
+        } finally {
+            mQueueLock.unlock();
         }
         if (mTileUploader.mActive.compareAndSet(false, true)) {
             getGLRoot().addOnGLIdleListener(mTileUploader);
         }
     }
 
-    synchronized void queueForDecode(Tile tile) {
-        if (tile.mTileState == STATE_ACTIVATED) {
-            tile.mTileState = STATE_IN_QUEUE;
-            if (mDecodeQueue.push(tile)) notifyAll();
+    void queueForDecode(Tile tile) {
+        if (!compareAndSetState(tile, STATE_ACTIVATED, STATE_IN_QUEUE)) return;
+        lockQueues();
+        try {
+            if (mDecodeQueue.push(tile)) mDecodeQueueNotEmpty.signalAll();
+        } finally {
+            mQueueLock.unlock();
         }
     }
 
     boolean decodeTile(Tile tile) {
-        synchronized (this) {
-            if (tile.mTileState != STATE_IN_QUEUE) return false;
-            tile.mTileState = STATE_DECODING;
-        }
+        if (!compareAndSetState(tile, STATE_IN_QUEUE, STATE_DECODING)) return false;
         boolean decodeComplete = tile.decode();
-        synchronized (this) {
-            if (tile.mTileState == STATE_RECYCLING) {
-                tile.mTileState = STATE_RECYCLED;
-                if (tile.mDecodedTile != null) {
-                    if (sTilePool != null) sTilePool.recycle(tile.mDecodedTile);
-                    tile.mDecodedTile = null;
-                }
-                mRecycledQueue.push(tile);
-                return false;
-            }
-            tile.mTileState = decodeComplete ? STATE_DECODED : STATE_DECODE_FAIL;
+        if (compareAndSetState(tile, STATE_DECODING,
+                decodeComplete ? STATE_DECODED : STATE_DECODE_FAIL)) {
+            mDecodeCompleteCount.incrementAndGet();
             return decodeComplete;
         }
+
+        // recycleTile() has moved the tile to STATE_RECYCLING meanwhile, so
+        // it is left to us to finish the recycling.
+        mDecodeCancelledCount.incrementAndGet();
+        if (tile.mDecodedTile != null) {
+            if (sTilePool != null) sTilePool.recycle(tile.mDecodedTile);
+            tile.mDecodedTile = null;
+        }
+        tile.mTileState = STATE_RECYCLED;
+        mRecycledQueue.push(tile);
+        return false;
     }
 
-    private synchronized Tile obtainTile(int x, int y, int level) {
+    private Tile obtainTile(int x, int y, int level) {
         Tile tile = mRecycledQueue.pop();
         if (tile != null) {
             tile.mTileState = STATE_ACTIVATED;
@@ -536,14 +873,39 @@ public class TileImageView extends GLView {
         return new Tile(x, y, level);
     }
 
-    synchronized void recycleTile(Tile tile) {
-        if (tile.mTileState == STATE_DECODING) {
-            tile.mTileState = STATE_RECYCLING;
-            return;
+    // Called in the GL thread only.
+    void recycleTile(Tile tile) {
+        if (tile.mPrefetched) {
+            tile.mPrefetched = false;
+            if (tile.mTileState == STATE_DECODING || tile.mTileState == STATE_DECODED
+                    || tile.isContentValid()) {
+                ++mPrefetchWasteCount;
+            }
+        }
+        while (true) {
+            int state = tile.mTileState;
+            if (state == STATE_DECODING) {
+                if (compareAndSetState(tile, state, STATE_RECYCLING)) {
+                    tile.cancelDecode();
+                    return;
+                }
+            } else if (state == STATE_RECYCLING || state == STATE_RECYCLED) {
+                return;
+            } else if (compareAndSetState(tile, state, STATE_RECYCLED)) {
+                break;
+            }
+        }
+        lockQueues();
+        try {
+            mDecodeQueue.remove(tile);
+            mUploadQueue.remove(tile);
+        } finally {
+            mQueueLock.unlock();
         }
-        tile.mTileState = STATE_RECYCLED;
         if (tile.mDecodedTile != null) {
-            if (sTilePool != null) sTilePool.recycle(tile.mDecodedTile);
+            // Decoded but not uploaded yet, keep it for a later visit.
+            mTileCache.put(makeTileKey(tile.mX, tile.mY, tile.mTileLevel),
+                    tile.mDecodedTile);
             tile.mDecodedTile = null;
         }
         mRecycledQueue.push(tile);
@@ -552,24 +914,49 @@ public class TileImageView extends GLView {
     private void activateTile(int x, int y, int level) {
         long key = makeTileKey(x, y, level);
         Tile tile = mActiveTiles.get(key);
-        if (tile != null) {
-            if (tile.mTileState == STATE_IN_QUEUE) {
-                tile.mTileState = STATE_ACTIVATED;
-            }
-            return;
-        }
+        if (tile != null) return;
         tile = obtainTile(x, y, level);
         mActiveTiles.put(key, tile);
+        loadFromTileCache(tile, key);
+    }
+
+    // Skips the decoding of a newly activated tile if its bitmap is still in
+    // mTileCache. The tile is uploaded when it is drawn.
+    private boolean loadFromTileCache(Tile tile, long key) {
+        if (tile.mTileState != STATE_ACTIVATED) return false;
+        Bitmap bitmap = mTileCache.remove(key);
+        if (bitmap == null) return false;
+        tile.mDecodedTile = bitmap;
+        if (compareAndSetState(tile, STATE_ACTIVATED, STATE_DECODED)) return true;
+        tile.mDecodedTile = null;
+        mTileCache.put(key, bitmap);
+        return false;
     }
 
     private Tile getTile(int x, int y, int level) {
         return mActiveTiles.get(makeTileKey(x, y, level));
     }
 
+    // Smaller value means higher priority: tiles of the displayed level come
+    // before the other level we keep, and nearer tiles come first within a
+    // level. Called with mQueueLock held.
+    private long getTilePriority(Tile tile) {
+        int level = tile.mTileLevel;
+        float half = (TILE_SIZE << level) / 2f;
+        float dx = tile.mX + half - mCenterX;
+        float dy = tile.mY + half - mCenterY;
+        long distance = Math.min((long) (dx * dx + dy * dy), PRIORITY_DISTANCE_MASK);
+        return ((long) Math.abs(level - mLevel) << 48) | distance;
+    }
+
+    // The key of a tile is made of its column, row and level. x and y are
+    // multiples of (TILE_SIZE << level), so the column and row fit in
+    // TILE_KEY_BITS bits for images up to 2^31 pixels on each side, and
+    // different tiles never share a key.
     private static long makeTileKey(int x, int y, int level) {
-        long result = x;
-        result = (result << 16) | y;
-        result = (result << 16) | level;
+        long result = x / TILE_SIZE;
+        result = (result << TILE_KEY_BITS) | (y / TILE_SIZE);
+        result = (result << 8) | level;
         return result;
     }
 
@@ -581,11 +968,19 @@ public class TileImageView extends GLView {
             // Skips uploading if there is a pending rendering request.
             // Returns true to keep uploading in next rendering loop.
             if (renderRequested) return true;
-            int quota = UPLOAD_LIMIT;
+            // Uploads as many tiles as the measured upload cost allows in
+            // the upload budget of a frame, but at least one.
+            long deadline = System.nanoTime()
+                    + UploadedTexture.getUploadBudget();
+            boolean uploaded = false;
             Tile tile = null;
-            while (quota > 0) {
-                synchronized (TileImageView.this) {
+            while (!uploaded || System.nanoTime()
+                    + UploadedTexture.getUploadCost() <= deadline) {
+                lockQueues();
+                try {
                     tile = mUploadQueue.pop();
+                } finally {
+                    mQueueLock.unlock();
                 }
                 if (tile == null) break;
                 if (!tile.isContentValid()) {
@@ -593,7 +988,7 @@ public class TileImageView extends GLView {
                     Utils.assertTrue(tile.mTileState == STATE_DECODED);
                     tile.updateContent(canvas);
                     if (!hasBeenLoaded) tile.draw(canvas, 0, 0);
-                    --quota;
+                    uploaded = true;
                 }
             }
             if (tile == null) mActive.set(false);
@@ -616,14 +1011,20 @@ public class TileImageView extends GLView {
 
         Tile tile = getTile(tx, ty, level);
         if (tile != null) {
+            if (tile.mPrefetched) {
+                // The prefetched tile becomes visible.
+                tile.mPrefetched = false;
+                if (tile.isContentValid() || tile.mTileState == STATE_DECODED) {
+                    ++mPrefetchHitCount;
+                }
+            }
             if (tile.getTextureFilter() != mChangeTextureFilter) {
                 tile.restTexureFilterFlag(mChangeTextureFilter);
                 tile.updateTexTextureFilter(canvas);
             }
             if (!tile.isContentValid()) {
                 if (tile.mTileState == STATE_DECODED) {
-                    if (mUploadQuota > 0) {
-                        --mUploadQuota;
+                    if (UploadedTexture.hasUploadBudget()) {
                         tile.updateContent(canvas);
                     } else {
                         mRenderComplete = false;
@@ -676,13 +1077,19 @@ public class TileImageView extends GLView {
         }
     }
 
-    private class Tile extends UploadedTexture {
+    private class Tile extends UploadedTexture implements JobContext {
         public int mX;
         public int mY;
         public int mTileLevel;
         public Tile mNext;
+        // The position in mDecodeQueue or mUploadQueue, -1 if not queued.
+        public int mQueueIndex = -1;
+        public long mPriority;
+        // Activated ahead of time by prefetchTile() and not visible yet.
+        public boolean mPrefetched;
         public Bitmap mDecodedTile;
         public volatile int mTileState = STATE_ACTIVATED;
+        private CancelListener mCancelListener;
 
         public Tile(int x, int y, int level) {
             mX = x;
@@ -692,7 +1099,9 @@ public class TileImageView extends GLView {
 
         @Override
         protected void onFreeBitmap(Bitmap bitmap) {
-            if (sTilePool != null) sTilePool.recycle(bitmap);
+            // The bitmap has been uploaded, keep it in case the tile is
+            // recycled and comes back soon.
+            mTileCache.put(makeTileKey(mX, mY, mTileLevel), bitmap);
         }
 
         boolean decode() {
@@ -700,13 +1109,37 @@ public class TileImageView extends GLView {
             // by (1 << mTilelevel) from a region in the original image.
             try {
                 mDecodedTile = DecodeUtils.ensureGLCompatibleBitmap(mModel.getTile(
-                        mTileLevel, mX, mY, TILE_SIZE, TILE_BORDER, sTilePool));
+                        this, mTileLevel, mX, mY, TILE_SIZE, TILE_BORDER, sTilePool));
             } catch (Throwable t) {
                 Log.w(TAG, "fail to decode tile", t);
+            } finally {
+                setCancelListener(null);
             }
             return mDecodedTile != null;
         }
 
+        // Below are the methods for JobContext. The decoding of a tile is
+        // cancelled when the tile is recycled by recycleTile().
+        @Override
+        public boolean isCancelled() {
+            return mTileState == STATE_RECYCLING;
+        }
+
+        @Override
+        public synchronized void setCancelListener(CancelListener listener) {
+            mCancelListener = listener;
+            if (listener != null && isCancelled()) listener.onCancel();
+        }
+
+        @Override
+        public boolean setMode(int mode) {
+            return true;
+        }
+
+        synchronized void cancelDecode() {
+            if (mCancelListener != null) mCancelListener.onCancel();
+        }
+
         @Override
         protected Bitmap onGetBitmap() {
             Utils.assertTrue(mTileState == STATE_DECODED);
@@ -720,6 +1153,8 @@ public class TileImageView extends GLView {
             Bitmap bitmap = mDecodedTile;
             mDecodedTile = null;
             mTileState = STATE_ACTIVATED;
+            // Only the tiles with alpha need blending, e.g. those of a PNG.
+            setOpaque(!bitmap.hasAlpha());
             return bitmap;
         }
 
@@ -759,24 +1194,129 @@ public class TileImageView extends GLView {
         }
     }
 
+    // A lock-free stack of tiles. Tiles are pushed by any thread but only
+    // popped by the GL thread, so a pop can't race with another pop and
+    // the head can't go through A -> B -> A under a pending compareAndSet().
     private static class TileQueue {
-        private Tile mHead;
+        private final AtomicReference<Tile> mHead = new AtomicReference<Tile>();
+
+        public Tile pop() {
+            while (true) {
+                Tile tile = mHead.get();
+                if (tile == null) return null;
+                if (mHead.compareAndSet(tile, tile.mNext)) {
+                    tile.mNext = null;
+                    return tile;
+                }
+            }
+        }
+
+        public boolean push(Tile tile) {
+            while (true) {
+                Tile head = mHead.get();
+                tile.mNext = head;
+                if (mHead.compareAndSet(head, tile)) return head == null;
+            }
+        }
+
+        public void clean() {
+            mHead.set(null);
+        }
+    }
+
+    // A binary min-heap of tiles keyed by getTilePriority(). Each tile knows
+    // its index in the heap, so a recycled tile can be removed in O(log n)
+    // and the whole heap can be re-ordered in place when the view moves.
+    private class TilePriorityQueue {
+        private Tile[] mTiles = new Tile[64];
+        private int mSize;
 
         public Tile pop() {
-            Tile tile = mHead;
-            if (tile != null) mHead = tile.mNext;
+            if (mSize == 0) return null;
+            Tile tile = mTiles[0];
+            removeAt(0);
             return tile;
         }
 
+        // Returns true if the queue was empty before pushing.
         public boolean push(Tile tile) {
-            boolean wasEmpty = mHead == null;
-            tile.mNext = mHead;
-            mHead = tile;
+            boolean wasEmpty = mSize == 0;
+            if (mSize == mTiles.length) {
+                mTiles = Arrays.copyOf(mTiles, mSize * 2);
+            }
+            tile.mPriority = getTilePriority(tile);
+            tile.mQueueIndex = mSize;
+            mTiles[mSize++] = tile;
+            siftUp(mSize - 1);
             return wasEmpty;
         }
 
+        public void remove(Tile tile) {
+            int index = tile.mQueueIndex;
+            if (index >= 0 && index < mSize && mTiles[index] == tile) {
+                removeAt(index);
+            }
+        }
+
+        // Recalculates the priorities after the center or the level changed.
+        public void reprioritize() {
+            for (int i = 0; i < mSize; i++) {
+                mTiles[i].mPriority = getTilePriority(mTiles[i]);
+            }
+            for (int i = mSize / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
         public void clean() {
-            mHead = null;
+            for (int i = 0; i < mSize; i++) {
+                mTiles[i].mQueueIndex = -1;
+                mTiles[i] = null;
+            }
+            mSize = 0;
+        }
+
+        private void removeAt(int index) {
+            mTiles[index].mQueueIndex = -1;
+            Tile last = mTiles[--mSize];
+            mTiles[mSize] = null;
+            if (index < mSize) {
+                set(index, last);
+                siftDown(index);
+                siftUp(last.mQueueIndex);
+            }
+        }
+
+        private void siftUp(int index) {
+            Tile tile = mTiles[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (mTiles[parent].mPriority <= tile.mPriority) break;
+                set(index, mTiles[parent]);
+                index = parent;
+            }
+            set(index, tile);
+        }
+
+        private void siftDown(int index) {
+            Tile tile = mTiles[index];
+            int half = mSize >>> 1;
+            while (index < half) {
+                int child = 2 * index + 1;
+                int right = child + 1;
+                if (right < mSize && mTiles[right].mPriority < mTiles[child].mPriority) {
+                    child = right;
+                }
+                if (tile.mPriority <= mTiles[child].mPriority) break;
+                set(index, mTiles[child]);
+                index = child;
+            }
+            set(index, tile);
+        }
+
+        private void set(int index, Tile tile) {
+            mTiles[index] = tile;
+            tile.mQueueIndex = index;
         }
     }
 
@@ -785,8 +1325,11 @@ public class TileImageView extends GLView {
         private CancelListener mNotifier = new CancelListener() {
             @Override
             public void onCancel() {
-                synchronized (TileImageView.this) {
-                    TileImageView.this.notifyAll();
+                mQueueLock.lock();
+                try {
+                    mDecodeQueueNotEmpty.signalAll();
+                } finally {
+                    mQueueLock.unlock();
                 }
             }
         };
@@ -797,11 +1340,14 @@ public class TileImageView extends GLView {
             jc.setCancelListener(mNotifier);
             while (!jc.isCancelled()) {
                 Tile tile = null;
-                synchronized (TileImageView.this) {
+                lockQueues();
+                try {
                     tile = mDecodeQueue.pop();
                     if (tile == null && !jc.isCancelled()) {
-                        Utils.waitWithoutInterrupt(TileImageView.this);
+                        mDecodeQueueNotEmpty.awaitUninterruptibly();
                     }
+                } finally {
+                    mQueueLock.unlock();
                 }
                 if (tile == null) continue;
                 if (decodeTile(tile)) queueForUpload(tile);
@@ -10,10 +10,19 @@ import android.graphics.Rect;
 import android.util.Log;
 
 import com.img.crop.utils.ApiHelper;
+import com.img.crop.utils.BitmapUtils;
 import com.img.crop.glsrender.gl11.BitmapScreenNail;
 import com.img.crop.glsrender.gl11.ScreenNail;
+import com.img.crop.thdpool.Future;
+import com.img.crop.thdpool.ThreadPool;
+import com.img.crop.thdpool.ThreadPool.Job;
+import com.img.crop.thdpool.ThreadPool.JobContext;
+import com.img.crop.utils.DecodeUtils;
 import com.img.crop.utils.Utils;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
 public class TileImageViewAdapter implements TileImageView.Model {
     private static final String TAG = "TileImageViewAdapter";
     protected ScreenNail mScreenNail;
@@ -23,16 +32,35 @@ public class TileImageViewAdapter implements TileImageView.Model {
     protected int mImageHeight;
     protected int mLevelCount;
 
+    // All the decoders opened on the current source: mRegionDecoder first,
+    // followed by the extra ones from openExtraRegionDecoders(). Each tile
+    // decoder worker takes one of them exclusively from mIdleDecoders, so
+    // tiles are decoded in parallel. Guarded by TileImageViewAdapter.this.
+    private final ArrayList<BitmapRegionDecoder> mDecoders =
+            new ArrayList<BitmapRegionDecoder>();
+    private final ArrayDeque<BitmapRegionDecoder> mIdleDecoders =
+            new ArrayDeque<BitmapRegionDecoder>();
+    private final ArrayList<BitmapRegionDecoder> mExtraDecoders =
+            new ArrayList<BitmapRegionDecoder>();
+    // Extra decoders dropped while a worker was still using them.
+    private final ArrayList<BitmapRegionDecoder> mRetiredDecoders =
+            new ArrayList<BitmapRegionDecoder>();
+    private Future<Void> mOpenDecodersTask;
+
+    // The pixel format of the tiles, see setOpaqueTileMode().
+    private Config mTileConfig = Config.ARGB_8888;
+
+    // The optional persistent tile cache, see setDiskCache().
+    private TileDiskCache mDiskCache;
+    private long mSourceKey;
+
     public TileImageViewAdapter() {
     }
 
     public TileImageViewAdapter(Bitmap bitmap, BitmapRegionDecoder regionDecoder) {
         Utils.checkNotNull(bitmap);
         updateScreenNail(new BitmapScreenNail(bitmap), true);
-        mRegionDecoder = regionDecoder;
-        mImageWidth = regionDecoder.getWidth();
-        mImageHeight = regionDecoder.getHeight();
-        mLevelCount = calculateLevelCount();
+        setRegionDecoder(regionDecoder);
     }
 
     public synchronized void clear() {
@@ -41,6 +69,8 @@ public class TileImageViewAdapter implements TileImageView.Model {
         mImageHeight = 0;
         mLevelCount = 0;
         mRegionDecoder = null;
+        mDiskCache = null;
+        resetDecoders();
     }
 
     // Caller is responsible to recycle the ScreenNail
@@ -51,7 +81,9 @@ public class TileImageViewAdapter implements TileImageView.Model {
         mImageWidth = width;
         mImageHeight = height;
         mRegionDecoder = null;
+        mDiskCache = null;
         mLevelCount = 0;
+        resetDecoders();
     }
 
     private void updateScreenNail(ScreenNail screenNail, boolean own) {
@@ -67,6 +99,124 @@ public class TileImageViewAdapter implements TileImageView.Model {
         mImageWidth = decoder.getWidth();
         mImageHeight = decoder.getHeight();
         mLevelCount = calculateLevelCount();
+        mDiskCache = null;
+        mTileConfig = Config.ARGB_8888;
+        resetDecoders();
+        mDecoders.add(decoder);
+        mIdleDecoders.add(decoder);
+    }
+
+    // If enabled, the tiles of an opaque source (a JPEG image) are decoded
+    // in RGB_565, which halves the memory of the tiles and the bytes we
+    // upload to GL, at the cost of some color precision. Call it after
+    // setRegionDecoder(), a new source turns the mode off again.
+    public synchronized void setOpaqueTileMode(boolean enabled, String mimeType) {
+        mTileConfig = enabled && BitmapUtils.isOpaqueMimeType(mimeType)
+                ? Config.RGB_565 : Config.ARGB_8888;
+    }
+
+    @Override
+    public synchronized Config getTileConfig() {
+        return mTileConfig;
+    }
+
+    // Lets getTile() load the tiles of filePath from the cache, and store
+    // the decoded ones into it. Call it after setRegionDecoder(), a new
+    // source turns the cache off again.
+    public synchronized void setDiskCache(TileDiskCache cache, String filePath) {
+        if (mRegionDecoder == null) return;
+        mDiskCache = cache;
+        mSourceKey = cache == null ? 0 : TileDiskCache.getSourceKey(filePath);
+    }
+
+    // Opens "count" more decoders on filePath in the background, so that
+    // up to (count + 1) tiles can be decoded at the same time. The extra
+    // decoders are owned by this adapter and recycled in clear().
+    public synchronized void openExtraRegionDecoders(
+            final String filePath, final int count) {
+        if (mRegionDecoder == null || count <= 0) return;
+        final BitmapRegionDecoder primary = mRegionDecoder;
+        mOpenDecodersTask = ThreadPool.getInstance().submit(new Job<Void>() {
+            @Override
+            public Void run(JobContext jc) {
+                for (int i = 0; i < count && !jc.isCancelled(); i++) {
+                    BitmapRegionDecoder decoder = DecodeUtils
+                            .createBitmapRegionDecoder(jc, filePath, false);
+                    if (decoder == null) break;
+                    if (!addRegionDecoder(primary, decoder, true)) {
+                        decoder.recycle();
+                        break;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    // Adds one more decoder opened on the source of primary, which stays
+    // owned by the caller, e.g. an ImageSession shared with other adapters.
+    // Returns false if the source has been changed meanwhile.
+    public boolean addSharedRegionDecoder(
+            BitmapRegionDecoder primary, BitmapRegionDecoder decoder) {
+        return addRegionDecoder(primary, decoder, false);
+    }
+
+    private synchronized boolean addRegionDecoder(BitmapRegionDecoder primary,
+            BitmapRegionDecoder decoder, boolean own) {
+        // The source has been changed while we were opening the decoder.
+        if (mRegionDecoder != primary) return false;
+        if (mDecoders.contains(decoder)) return true;
+        mDecoders.add(decoder);
+        if (own) mExtraDecoders.add(decoder);
+        mIdleDecoders.add(decoder);
+        notifyAll();
+        return true;
+    }
+
+    public synchronized int getRegionDecoderCount() {
+        return mDecoders.size();
+    }
+
+    private void resetDecoders() {
+        if (mOpenDecodersTask != null) {
+            mOpenDecodersTask.cancel();
+            mOpenDecodersTask = null;
+        }
+        // Extra decoders still being used by a worker are recycled when
+        // they are released.
+        for (BitmapRegionDecoder decoder : mExtraDecoders) {
+            if (mIdleDecoders.contains(decoder)) {
+                decoder.recycle();
+            } else {
+                mRetiredDecoders.add(decoder);
+            }
+        }
+        mExtraDecoders.clear();
+        mDecoders.clear();
+        mIdleDecoders.clear();
+        notifyAll();
+    }
+
+    // Takes an idle decoder, waiting for one of the other workers to
+    // release theirs if needed. Returns null if there is no decoder.
+    private synchronized BitmapRegionDecoder acquireRegionDecoder() {
+        while (true) {
+            if (mDecoders.isEmpty()) return null;
+            BitmapRegionDecoder decoder = mIdleDecoders.pollFirst();
+            if (decoder != null) return decoder;
+            Utils.waitWithoutInterrupt(this);
+        }
+    }
+
+    private synchronized void releaseRegionDecoder(BitmapRegionDecoder decoder) {
+        if (mDecoders.contains(decoder)) {
+            mIdleDecoders.addLast(decoder);
+            notifyAll();
+        } else if (mRetiredDecoders.remove(decoder)) {
+            // The primary decoder is owned by the caller of
+            // setRegionDecoder(), only the extra ones are recycled here.
+            decoder.recycle();
+        }
     }
 
     private int calculateLevelCount() {
@@ -87,10 +237,10 @@ public class TileImageViewAdapter implements TileImageView.Model {
     // (44, 44, 256, 256) from the original photo and down sample it to 106.
     @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
     @Override
-    public Bitmap getTile(int level, int x, int y, int tileSize,
+    public Bitmap getTile(JobContext jc, int level, int x, int y, int tileSize,
                           int borderSize, TileBitmapPool pool) {
         if (!ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER) {
-            return getTileWithoutReusingBitmap(level, x, y, tileSize, borderSize);
+            return getTileWithoutReusingBitmap(jc, level, x, y, tileSize, borderSize);
         }
 
         int b = borderSize << level;
@@ -100,10 +250,34 @@ public class TileImageViewAdapter implements TileImageView.Model {
 
         boolean needClear;
         BitmapRegionDecoder regionDecoder = null;
+        TileDiskCache diskCache;
+        long sourceKey;
+        Config config;
 
         synchronized (this) {
-            regionDecoder = mRegionDecoder;
-            if (regionDecoder == null) return null;
+            diskCache = mDiskCache;
+            sourceKey = mSourceKey;
+            config = mTileConfig;
+        }
+
+        int s = tileSize + 2 * borderSize;
+        Bitmap bitmap = pool == null ? null : pool.getBitmap(s, s, config);
+        boolean reused = bitmap != null;
+        if (bitmap == null) bitmap = Bitmap.createBitmap(s, s, config);
+
+        // A cached tile needs neither a decoder nor the JPEG decoding.
+        if (diskCache != null
+                && diskCache.getTile(sourceKey, level, x, y, tileSize, bitmap)) {
+            return bitmap;
+        }
+
+        synchronized (this) {
+            regionDecoder = acquireRegionDecoder();
+            if (regionDecoder == null || jc.isCancelled()) {
+                if (regionDecoder != null) releaseRegionDecoder(regionDecoder);
+                if (pool != null) pool.recycle(bitmap);
+                return null;
+            }
 
             // We need to clear a reused bitmap, if wantRegion is not fully
             // within the image.
@@ -111,19 +285,14 @@ public class TileImageViewAdapter implements TileImageView.Model {
                     .contains(wantRegion);
         }
 
-        int s = tileSize + 2 * borderSize;
-        Bitmap bitmap = pool == null ? null : pool.getBitmap();
-        if (bitmap != null) {
-            if (needClear) bitmap.eraseColor(0);
-        } else {
-            bitmap = Bitmap.createBitmap(s, s, Config.ARGB_8888);
-        }
+        if (reused && needClear) bitmap.eraseColor(0);
 
         BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = Config.ARGB_8888;
+        options.inPreferredConfig = config;
         options.inPreferQualityOverSpeed = true;
         options.inSampleSize =  (1 << level);
         options.inBitmap = bitmap;
+        jc.setCancelListener(new DecodeUtils.DecodeCanceller(options));
 
         try {
             // In CropImageActivity, we may call the decodeRegion() concurrently.
@@ -131,19 +300,24 @@ public class TileImageViewAdapter implements TileImageView.Model {
                 bitmap = regionDecoder.decodeRegion(wantRegion, options);
             }
         } finally {
+            jc.setCancelListener(null);
+            releaseRegionDecoder(regionDecoder);
             if (options.inBitmap != bitmap && options.inBitmap != null) {
                 if (pool != null) pool.recycle(options.inBitmap);
                 options.inBitmap = null;
             }
         }
 
-        if (bitmap == null) {
+        if (diskCache != null && bitmap != null && !jc.isCancelled()) {
+            diskCache.putTile(sourceKey, level, x, y, tileSize, bitmap);
+        }
+        if (bitmap == null && !jc.isCancelled()) {
             Log.w(TAG, "fail in decoding region");
         }
         return bitmap;
     }
 
-    private Bitmap getTileWithoutReusingBitmap(
+    private Bitmap getTileWithoutReusingBitmap(JobContext jc,
             int level, int x, int y, int tileSize, int borderSize) {
         int b = borderSize << level;
         int t = tileSize << level;
@@ -151,33 +325,46 @@ public class TileImageViewAdapter implements TileImageView.Model {
 
         BitmapRegionDecoder regionDecoder;
         Rect overlapRegion;
+        Config config;
 
         synchronized (this) {
-            regionDecoder = mRegionDecoder;
+            config = mTileConfig;
+            regionDecoder = acquireRegionDecoder();
             if (regionDecoder == null) return null;
+            if (jc.isCancelled()) {
+                releaseRegionDecoder(regionDecoder);
+                return null;
+            }
             overlapRegion = new Rect(0, 0, mImageWidth, mImageHeight);
             Utils.assertTrue(overlapRegion.intersect(wantRegion));
         }
 
         BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = Config.ARGB_8888;
+        options.inPreferredConfig = config;
         options.inPreferQualityOverSpeed = true;
         options.inSampleSize =  (1 << level);
         Bitmap bitmap = null;
+        jc.setCancelListener(new DecodeUtils.DecodeCanceller(options));
 
-        // In CropImageActivity, we may call the decodeRegion() concurrently.
-        synchronized (regionDecoder) {
-            bitmap = regionDecoder.decodeRegion(overlapRegion, options);
+        try {
+            // In CropImageActivity, we may call the decodeRegion() concurrently.
+            synchronized (regionDecoder) {
+                bitmap = regionDecoder.decodeRegion(overlapRegion, options);
+            }
+        } finally {
+            jc.setCancelListener(null);
+            releaseRegionDecoder(regionDecoder);
         }
 
         if (bitmap == null) {
-            Log.w(TAG, "fail in decoding region");
+            if (!jc.isCancelled()) Log.w(TAG, "fail in decoding region");
+            return null;
         }
 
         if (wantRegion.equals(overlapRegion)) return bitmap;
 
         int s = tileSize + 2 * borderSize;
-        Bitmap result = Bitmap.createBitmap(s, s, Config.ARGB_8888);
+        Bitmap result = Bitmap.createBitmap(s, s, config);
         Canvas canvas = new Canvas(result);
         canvas.drawBitmap(bitmap,
                 (overlapRegion.left - wantRegion.left) >> level,
@@ -396,6 +396,7 @@ public class GLRootView extends GLSurfaceView implements
         if (UploadedTexture.uploadLimitReached()) {
             requestRender();
         }
+        UploadedTexture.onFrameEnd();
 
         synchronized (mIdleListeners) {
             if (!mIdleListeners.isEmpty())
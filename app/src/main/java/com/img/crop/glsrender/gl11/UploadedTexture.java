@@ -26,9 +26,27 @@ public abstract class UploadedTexture extends BasicTexture{
     // indicate this textures is being uploaded in background
     private boolean mIsUploading = false;
     private boolean mOpaque = true;
+    // The pixel format the texture was allocated with.
+    private Config mTextureConfig;
     private boolean mThrottled = false;
+
+    // The uploads are scheduled by time instead of by count: in each frame
+    // we upload as long as the measured cost of an upload still fits in
+    // what is left of the frame budget after rendering. All of these are
+    // only used in the GL thread.
+    private static final long DEFAULT_FRAME_BUDGET_NANOS = 16 * 1000000L;
+    private static final long MIN_UPLOAD_BUDGET_NANOS = 2 * 1000000L;
+    private static final long DEFAULT_UPLOAD_COST_NANOS = 2 * 1000000L;
+
+    private static long sFrameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
+    private static long sUploadBudgetNanos = MIN_UPLOAD_BUDGET_NANOS;
+    // Moving averages of an upload and of a frame without its uploads.
+    private static long sUploadCostNanos = DEFAULT_UPLOAD_COST_NANOS;
+    private static long sRenderCostNanos;
+    private static long sFrameStartNanos;
+    private static long sUploadTimeNanos;
     private static int sUploadedCount;
-    private static final int UPLOAD_LIMIT = 100;
+    private static boolean sUploadDeferred;
 
     protected Bitmap mBitmap;
     private int mBorder;
@@ -162,13 +180,24 @@ public abstract class UploadedTexture extends BasicTexture{
      */
     public void updateContent(GLCanvas canvas) {
         if (!isLoaded()) {
-            if (mThrottled && ++sUploadedCount > UPLOAD_LIMIT) {
+            if (mThrottled && !hasUploadBudget()) {
+                sUploadDeferred = true;
                 return;
             }
+            long start = System.nanoTime();
             uploadToCanvas(canvas);
+            onUploaded(System.nanoTime() - start);
         } else if (!mContentValid) {
             Bitmap bitmap = getBitmap();
             if (bitmap == null) return;
+            if (bitmap.getConfig() != mTextureConfig) {
+                // texSubImage2D() can't change the format of the texture,
+                // so we allocate a new one.
+                this.yield();
+                updateContent(canvas);
+                return;
+            }
+            long start = System.nanoTime();
             int format = GLUtils.getInternalFormat(bitmap);
             int type = GLUtils.getType(bitmap);
             canvas.getGLInstance().glBindTexture(GL11.GL_TEXTURE_2D, mId);
@@ -176,6 +205,7 @@ public abstract class UploadedTexture extends BasicTexture{
                     bitmap, format, type);
             freeBitmap();
             mContentValid = true;
+            onUploaded(System.nanoTime() - start);
         }
     }
     
@@ -192,12 +222,53 @@ public abstract class UploadedTexture extends BasicTexture{
     	return mChangedTextureFilter;
     }
 
+    // Sets the time a frame should take, including the uploads.
+    public static void setFrameBudget(long nanos) {
+        sFrameBudgetNanos = nanos;
+    }
+
+    // Called by GLRoot at the beginning of a frame.
     public static void resetUploadLimit() {
+        sFrameStartNanos = System.nanoTime();
+        sUploadTimeNanos = 0;
         sUploadedCount = 0;
+        sUploadDeferred = false;
+        sUploadBudgetNanos = Utils.clamp(sFrameBudgetNanos - sRenderCostNanos,
+                MIN_UPLOAD_BUDGET_NANOS, sFrameBudgetNanos);
+    }
+
+    // Called by GLRoot at the end of a frame.
+    public static void onFrameEnd() {
+        long renderCost = System.nanoTime()
+                - sFrameStartNanos - sUploadTimeNanos;
+        sRenderCostNanos = (sRenderCostNanos * 3 + renderCost) / 4;
+    }
+
+    // Returns true if another upload fits in this frame. One upload is
+    // always allowed, so the content keeps making progress on slow devices.
+    public static boolean hasUploadBudget() {
+        return sUploadedCount == 0
+                || sUploadTimeNanos + sUploadCostNanos <= sUploadBudgetNanos;
+    }
+
+    // The time the uploads may take in this frame.
+    public static long getUploadBudget() {
+        return sUploadBudgetNanos;
+    }
+
+    // The average time of an upload.
+    public static long getUploadCost() {
+        return sUploadCostNanos;
     }
 
     public static boolean uploadLimitReached() {
-        return sUploadedCount > UPLOAD_LIMIT;
+        return sUploadDeferred;
+    }
+
+    private static void onUploaded(long nanos) {
+        ++sUploadedCount;
+        sUploadTimeNanos += nanos;
+        sUploadCostNanos = (sUploadCostNanos * 7 + nanos) / 8;
     }
     
     public void restTexureFilterFlag(int filterTyp) {
@@ -288,6 +359,7 @@ public abstract class UploadedTexture extends BasicTexture{
             }
             // Update texture state.
             setAssociatedCanvas(canvas);
+            mTextureConfig = bitmap.getConfig();
             mId = sTextureId[0];
             mState = STATE_LOADED;
             mContentValid = true;
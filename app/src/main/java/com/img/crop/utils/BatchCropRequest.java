@@ -0,0 +1,152 @@
+package com.img.crop.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.img.crop.core.TileImageView;
+import com.img.crop.thdpool.ThreadPool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright (C) 2017
+ * 版权所有
+ *
+ * 功能描述：批量裁剪，不需要界面。在同一张图上一次生成多个裁剪(比如头像、封面、横幅)，
+ * 只打开一次解码器，缩放比例相同的裁剪共用解码的tile，重叠的区域不会重复解码。
+ * 结果按输出的顺序返回，保存失败的为null；被取消或者无法解码时返回null
+ * 作者：huangyong
+ * 创建时间：2018/1/5
+ *
+ * 修改人：
+ * 修改描述：
+ * 修改日期
+ */
+public class BatchCropRequest implements ThreadPool.Job<List<File>> {
+    private static final String TAG = "BatchCropRequest";
+
+    public static class Output {
+        // The region of the source, in the coordinates of the file (without
+        // the EXIF rotation).
+        public final Rect rect;
+        // The size of the output, rect is scaled to fill it.
+        public final int width;
+        public final int height;
+        // The format follows the extension, see CropBusiness.saveMedia().
+        public final String filePath;
+
+        public Output(Rect rect, int width, int height, String filePath) {
+            this.rect = rect;
+            this.width = width;
+            this.height = height;
+            this.filePath = filePath;
+        }
+    }
+
+    private final Context mContext;
+    private final String mFilePath;
+    private final List<Output> mOutputs;
+
+    public BatchCropRequest(Context context, String filePath, List<Output> outputs) {
+        mContext = context.getApplicationContext();
+        mFilePath = filePath;
+        mOutputs = outputs;
+    }
+
+    @Override
+    public List<File> run(ThreadPool.JobContext jc) {
+        BitmapRegionDecoder decoder =
+                DecodeUtils.createBitmapRegionDecoder(jc, mFilePath, false);
+        if (decoder == null) return null;
+
+        int count = mOutputs.size();
+        ArrayList<File> files = new ArrayList<File>(count);
+        Rect rects[] = new Rect[count];
+        int samples[] = new int[count];
+        Rect bounds = new Rect(0, 0, decoder.getWidth(), decoder.getHeight());
+        for (int i = 0; i < count; i++) {
+            files.add(null);
+            Output output = mOutputs.get(i);
+            Rect rect = new Rect(output.rect);
+            if (output.width > 0 && output.height > 0 && rect.intersect(bounds)) {
+                rects[i] = rect;
+                samples[i] = BitmapUtils.computeSampleSizeLarger(Math.max(
+                        (float) output.width / rect.width(),
+                        (float) output.height / rect.height()));
+            }
+        }
+
+        int tileSize = CropBusiness.getExportTileSize(mContext);
+        boolean done[] = new boolean[count];
+        try {
+            // The outputs decoded with the same sample size share the tiles.
+            for (int i = 0; i < count; i++) {
+                if (done[i] || rects[i] == null) continue;
+                ArrayList<Integer> group = new ArrayList<Integer>();
+                for (int j = i; j < count; j++) {
+                    if (!done[j] && rects[j] != null && samples[j] == samples[i]) {
+                        group.add(j);
+                        done[j] = true;
+                    }
+                }
+                // A group that fails leaves its entries null, the others
+                // are still saved.
+                cropGroup(jc, decoder, group, rects, samples[i], tileSize, files);
+                if (jc.isCancelled()) return null;
+            }
+        } finally {
+            decoder.recycle();
+        }
+        return jc.isCancelled() ? null : files;
+    }
+
+    // Saves the outputs of the group into files, the entries of the ones
+    // that fail are left null.
+    private void cropGroup(ThreadPool.JobContext jc, BitmapRegionDecoder decoder,
+                           List<Integer> group, Rect[] rects, int sample, int tileSize,
+                           List<File> files) {
+        BitmapPool pool = BitmapPool.getPool(BitmapPool.TYPE_SHARED);
+        ArrayList<Rect> sources = new ArrayList<Rect>();
+        ArrayList<Rect> dests = new ArrayList<Rect>();
+        ArrayList<Canvas> canvases = new ArrayList<Canvas>();
+        ArrayList<Bitmap> bitmaps = new ArrayList<Bitmap>();
+        try {
+            for (int index : group) {
+                Output output = mOutputs.get(index);
+                Bitmap bitmap = pool.obtainBitmap(
+                        output.width, output.height, Bitmap.Config.ARGB_8888);
+                bitmaps.add(bitmap);
+                canvases.add(new Canvas(bitmap));
+                sources.add(rects[index]);
+                dests.add(new Rect(0, 0, output.width, output.height));
+            }
+
+            long start = System.nanoTime();
+            if (!CropBusiness.drawInTiles(jc, decoder, sources, dests, canvases,
+                    sample, tileSize, TileImageView.getTilePool())) {
+                Log.w(TAG, "fail to decode " + group.size() + " crops with sample " + sample);
+                return;
+            }
+            Log.d(TAG, group.size() + " crops with sample " + sample + ": "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+
+            for (int i = 0, n = group.size(); i < n; i++) {
+                if (jc.isCancelled()) return;
+                String filePath = mOutputs.get(group.get(i)).filePath;
+                if (CropBusiness.saveMedia(jc, bitmaps.get(i), filePath) != null) {
+                    files.set(group.get(i), new File(filePath));
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "out of memory for " + group.size() + " crops", e);
+        } finally {
+            for (Bitmap bitmap : bitmaps) pool.recycle(bitmap);
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package com.img.crop.utils;
 
-import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import com.img.crop.core.TileBitmapPool;
 
 /*
  * Copyright (C) 2017
@@ -17,75 +17,48 @@ import android.graphics.Bitmap;
  * 修改描述：
  * 修改日期
  */
-public class BitmapPool {
-    private ArrayList<WeakReference<Bitmap>> mPool;
+public class BitmapPool extends TileBitmapPool {
+    /**
+     * 解码、BitmapTileProvider以及裁剪共用的pool
+     */
+    public static final int TYPE_SHARED = 0;
+    public static final int TYPE_THUMBNAIL = 1;
+
+    // Each pool may hold 1/POOL_HEAP_FRACTION of the heap. The bitmaps are
+    // strongly held, so they really are there when we want to reuse them.
+    private static final int POOL_HEAP_FRACTION = 16;
 
     private static BitmapPool sPool[] = new BitmapPool[]{
             new BitmapPool(), new BitmapPool()};
 
     // Construct a BitmapPool which caches bitmap with any size;
     public BitmapPool() {
-        mPool = new ArrayList<WeakReference<Bitmap>>();
-    }
-
-    // Get a Bitmap from the pool with the specified size.
-    public synchronized Bitmap getBitmap(int width, int height) {
-        for (int i = mPool.size() - 1; i >= 0; --i) {
-            WeakReference<Bitmap> ref = mPool.get(i);
-            if (ref.get() != null) {
-                Bitmap bitmap = ref.get();
-                if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
-                    mPool.remove(i);
-                    return bitmap;
-                }
-            } else {
-                mPool.remove(ref);
-            }
-        }
-        return null;
+        this(Runtime.getRuntime().maxMemory() / POOL_HEAP_FRACTION);
     }
 
-    // Put a Bitmap into the pool, if the Bitmap has a proper size. Otherwise
-    // the Bitmap will be recycled. If the pool is full, an old Bitmap will be
-    // recycled.
-    public synchronized void recycle(Bitmap bitmap) {
-        if (bitmap == null) return;
-
-        synchronized (this) {
-            for (int i = mPool.size() - 1; i >= 0; --i) {
-                WeakReference<Bitmap> ref = mPool.get(i);
-                if (ref.get() == null) {
-                    mPool.remove(i);
-                }
-            }
-            mPool.add(new WeakReference<Bitmap>(bitmap));
-        }
+    public BitmapPool(long maxBytes) {
+        super(maxBytes);
     }
 
-
     public static BitmapPool getPool(int type) {
         return sPool[type];
     }
 
-    public synchronized void clear() {
+    // Get a Bitmap from the pool, or create a new one if there is none with
+    // the specified size and config.
+    public Bitmap obtainBitmap(int width, int height, Config config) {
+        Bitmap bitmap = getBitmap(width, height, config);
+        if (bitmap == null) return Bitmap.createBitmap(width, height, config);
+        bitmap.eraseColor(0);
+        return bitmap;
     }
 
     public void clearAll() {
-        mPool.clear();
+        clear();
     }
 
-    public synchronized void release() {
-        for (int i = mPool.size() - 1; i >= 0; --i) {
-            WeakReference<Bitmap> ref = mPool.get(i);
-            if (ref.get() != null) {
-                Bitmap bitmap = ref.get();
-                if (bitmap != null && !bitmap.isRecycled()) {
-                    bitmap.recycle();
-                }
-            }
-        }
-
-        clearAll();
+    public void release() {
+        clear();
     }
 
     public static void setRecycle(boolean recycle) {
@@ -128,17 +128,30 @@ public class BitmapUtils {
     }
 
     public static Bitmap resizeBitmapByScale(Bitmap bitmap, float scale, boolean recycle) {
+        return resizeBitmapByScale(bitmap, scale, recycle, null);
+    }
+
+    // Same as above, but the target bitmap is taken from the pool if there
+    // is one, and the recycled source bitmap is put back into the pool.
+    public static Bitmap resizeBitmapByScale(Bitmap bitmap, float scale, boolean recycle, BitmapPool pool) {
         int width = Math.round(bitmap.getWidth() * scale);
         int height = Math.round(bitmap.getHeight() * scale);
         if (width == bitmap.getWidth() && height == bitmap.getHeight())
             return bitmap;
-        Bitmap target = Bitmap.createBitmap(width, height, getConfig(bitmap));
+        Bitmap target = pool == null
+                ? Bitmap.createBitmap(width, height, getConfig(bitmap))
+                : pool.obtainBitmap(width, height, getConfig(bitmap));
         Canvas canvas = new Canvas(target);
         canvas.scale(scale, scale);
         Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
         canvas.drawBitmap(bitmap, 0, 0, paint);
-        if (recycle)
-            bitmap.recycle();
+        if (recycle) {
+            if (pool == null) {
+                bitmap.recycle();
+            } else {
+                pool.recycle(bitmap);
+            }
+        }
         return target;
     }
 
@@ -318,6 +331,28 @@ public class BitmapUtils {
         return baos.toByteArray();
     }
 
+    // Returns the sum of the squared differences of the R, G and B values of
+    // two bitmaps of the same size, e.g. to compute the PSNR of b against a.
+    public static double getSquaredError(Bitmap a, Bitmap b) {
+        int width = a.getWidth();
+        int height = a.getHeight();
+        Utils.assertTrue(width == b.getWidth() && height == b.getHeight());
+        int rowA[] = new int[width];
+        int rowB[] = new int[width];
+        double sum = 0;
+        for (int y = 0; y < height; y++) {
+            a.getPixels(rowA, 0, width, 0, y, width, 1);
+            b.getPixels(rowB, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int d = ((rowA[x] >> shift) & 0xFF) - ((rowB[x] >> shift) & 0xFF);
+                    sum += d * d;
+                }
+            }
+        }
+        return sum;
+    }
+
     public static boolean isSupportedByRegionDecoder(String mimeType) {
         if (mimeType == null)
             return false;
@@ -328,6 +363,13 @@ public class BitmapUtils {
                 .endsWith("tiff"));
     }
 
+    // Returns true if the images of the type never have an alpha channel.
+    public static boolean isOpaqueMimeType(String mimeType) {
+        if (mimeType == null) return false;
+        mimeType = mimeType.toLowerCase(Locale.getDefault());
+        return mimeType.equals("image/jpeg") || mimeType.equals("image/jpg");
+    }
+
     public static boolean isRotationSupported(String mimeType) {
         if (mimeType == null)
             return false;
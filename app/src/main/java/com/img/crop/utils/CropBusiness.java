@@ -19,6 +19,10 @@ import android.view.inputmethod.InputMethodManager;
 
 import com.img.crop.MediaItem;
 import com.img.crop.R;
+import com.img.crop.core.TileBitmapPool;
+import com.img.crop.core.TileCalibration;
+import com.img.crop.core.TileImageView;
+import com.img.crop.thdpool.Future;
 import com.img.crop.thdpool.ThreadPool;
 
 import java.io.File;
@@ -27,7 +31,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /*
  * Copyright (C) 2017
@@ -43,8 +49,9 @@ import java.util.Arrays;
  */
 public class CropBusiness {
     private static final String TAG = "CropBusiness";
-    private static final int TILE_SIZE = 512;
     public static final int DEFAULT_COMPRESS_QUALITY = 95;
+    // The number of tiles kept by the own tile pool of an export.
+    private static final int EXPORT_POOL_TILES = 4;
 
     /**
      * 是否支持区域解码
@@ -115,6 +122,15 @@ public class CropBusiness {
         }
     }
 
+    /**
+     * 额外输出的路径：在扩展名前加上"_尺寸"
+     */
+    public static String getSizedOutputPath(String filePath, int size) {
+        int dot = filePath.lastIndexOf('.');
+        if (dot <= filePath.lastIndexOf('/')) return filePath + "_" + size;
+        return filePath.substring(0, dot) + "_" + size + filePath.substring(dot);
+    }
+
     public static String getFileExtension(String requestFormat, MediaItem mediaItem) {
         String outputFormat = (requestFormat == null)
                 ? getExtensionName(mediaItem.filePath)
@@ -126,6 +142,27 @@ public class CropBusiness {
                 : "jpg";
     }
 
+    /**
+     * 把bitmap缩小到width x height。要缩小到一半以下时先逐次减半，每一步都是双线性过滤，
+     * 避免一次缩小太多产生锯齿。返回的bitmap来自共享的BitmapPool，source不会被回收
+     */
+    public static Bitmap scaleDown(Bitmap source, int width, int height) {
+        BitmapPool pool = BitmapPool.getPool(BitmapPool.TYPE_SHARED);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect dest = new Rect();
+        Bitmap current = source;
+        while (true) {
+            int w = Math.max(width, current.getWidth() / 2);
+            int h = Math.max(height, current.getHeight() / 2);
+            Bitmap next = pool.obtainBitmap(w, h, Bitmap.Config.ARGB_8888);
+            dest.set(0, 0, w, h);
+            new Canvas(next).drawBitmap(current, null, dest, paint);
+            if (current != source) pool.recycle(current);
+            current = next;
+            if (w == width && h == height) return current;
+        }
+    }
+
     /**
      * 旋转画布
      *
@@ -135,12 +172,13 @@ public class CropBusiness {
      * @param rotation
      */
     public static void rotateCanvas(Canvas canvas, int width, int height, int rotation) {
-        canvas.translate(width / 2, height / 2);
+        // Halves in float, so odd sizes are not shifted by one pixel.
+        canvas.translate(width / 2f, height / 2f);
         canvas.rotate(rotation);
         if (((rotation / 90) & 0x01) == 0) {
-            canvas.translate(-width / 2, -height / 2);
+            canvas.translate(-width / 2f, -height / 2f);
         } else {
-            canvas.translate(-height / 2, -width / 2);
+            canvas.translate(-height / 2f, -width / 2f);
         }
     }
 
@@ -186,8 +224,19 @@ public class CropBusiness {
         }
     }
 
-    public static void drawInTiles(Canvas canvas, BitmapRegionDecoder decoder, Rect rect, Rect dest, int sample) {
-        int tileSize = TILE_SIZE * sample;
+    /**
+     * 分块解码rect区域并绘制到canvas的dest区域
+     *
+     * @param tileSize 每块解码后的边长，和tile池的bitmap一样大时完整的tile会复用池里的bitmap
+     * @param pool     tile池，可以为null
+     * @return 解码失败时返回false
+     */
+    public static boolean drawInTiles(Canvas canvas, BitmapRegionDecoder decoder, Rect rect, Rect dest,
+                                   int sample, int tileSize, TileBitmapPool pool) {
+        int regionSize = tileSize * sample;
+        TileBitmapPool tilePool = pool;
+        pool = getExportPool(tilePool, tileSize);
+        TileStats stats = new TileStats();
         Rect tileRect = new Rect();
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
@@ -196,25 +245,521 @@ public class CropBusiness {
         canvas.scale((float) sample * dest.width() / rect.width(),
                 (float) sample * dest.height() / rect.height());
         Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        try {
+            for (int tx = rect.left, x = 0;
+                 tx < rect.right; tx += regionSize, x += tileSize) {
+                for (int ty = rect.top, y = 0;
+                     ty < rect.bottom; ty += regionSize, y += tileSize) {
+                    tileRect.set(tx, ty, tx + regionSize, ty + regionSize);
+                    if (tileRect.intersect(rect)) {
+                        Bitmap bitmap = decodeTile(decoder, tileRect, options, tileSize,
+                                pool, stats);
+                        if (bitmap == null) {
+                            Log.w(TAG, "fail to decode tile " + tileRect);
+                            return false;
+                        }
+                        canvas.drawBitmap(bitmap, x, y, paint);
+                        recycleTile(bitmap, pool);
+                    }
+                }
+            }
+            Log.d(TAG, "drawInTiles: " + stats);
+            return true;
+        } finally {
+            releaseExportPool(pool, tilePool);
+        }
+    }
+
+    /**
+     * drawInTiles()的多线程版本：每个解码器由一个线程池任务独占，并行解码各个tile，
+     * 调用线程按顺序把解码好的tile绘制到canvas。解码领先绘制的tile数有上限，
+     * 所以同时存在的tile bitmap数量是有限的
+     *
+     * @param decoders 在同一张图上打开的解码器
+     * @return 被取消或者解码失败时返回false
+     */
+    public static boolean drawInTiles(final ThreadPool.JobContext jc, Canvas canvas,
+                                      List<BitmapRegionDecoder> decoders, Rect rect, Rect dest,
+                                      int sample, final int tileSize, TileBitmapPool tilePool) {
+        int regionSize = tileSize * sample;
+        final TileBitmapPool pool = getExportPool(tilePool, tileSize);
+        final TileStats stats = new TileStats();
+        final ArrayList<Rect> regions = new ArrayList<Rect>();
+        IntArray positions = new IntArray();
         for (int tx = rect.left, x = 0;
-             tx < rect.right; tx += tileSize, x += TILE_SIZE) {
+             tx < rect.right; tx += regionSize, x += tileSize) {
             for (int ty = rect.top, y = 0;
-                 ty < rect.bottom; ty += tileSize, y += TILE_SIZE) {
-                tileRect.set(tx, ty, tx + tileSize, ty + tileSize);
+                 ty < rect.bottom; ty += regionSize, y += tileSize) {
+                Rect tileRect = new Rect(tx, ty, tx + regionSize, ty + regionSize);
                 if (tileRect.intersect(rect)) {
-                    Bitmap bitmap;
+                    regions.add(tileRect);
+                    positions.add(x);
+                    positions.add(y);
+                }
+            }
+        }
 
-                    // To prevent concurrent access in GLThread
-                    synchronized (decoder) {
-                        bitmap = decoder.decodeRegion(tileRect, options);
+        int position[] = positions.getInternalArray();
+        final ParallelTiles tiles = new ParallelTiles(regions.size(), decoders.size() * 2);
+        final BitmapFactory.Options options[] = new BitmapFactory.Options[decoders.size()];
+        ArrayList<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int i = 0; i < decoders.size(); i++) {
+            final BitmapRegionDecoder decoder = decoders.get(i);
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            opts.inSampleSize = sample;
+            options[i] = opts;
+            workers.add(ThreadPool.getInstance().submit(new ThreadPool.Job<Void>() {
+                @Override
+                public Void run(ThreadPool.JobContext workerContext) {
+                    // Like the tile decoders, do not hold one of the few
+                    // CPU slots of the pool.
+                    workerContext.setMode(ThreadPool.MODE_NONE);
+                    int index;
+                    while ((index = tiles.next()) >= 0) {
+                        Bitmap bitmap = null;
+                        try {
+                            bitmap = decodeTile(decoder, regions.get(index), opts,
+                                    tileSize, pool, stats);
+                        } catch (Throwable t) {
+                            Log.w(TAG, "fail to decode tile", t);
+                        }
+                        tiles.put(index, bitmap);
                     }
+                    return null;
+                }
+            }));
+        }
+
+        // The caller only waits and draws, let the workers have its CPU slot.
+        jc.setMode(ThreadPool.MODE_NONE);
+        jc.setCancelListener(new ThreadPool.CancelListener() {
+            @Override
+            public void onCancel() {
+                tiles.abort();
+                for (BitmapFactory.Options opts : options) opts.requestCancelDecode();
+            }
+        });
+        try {
+            canvas.translate(dest.left, dest.top);
+            canvas.scale((float) sample * dest.width() / rect.width(),
+                    (float) sample * dest.height() / rect.height());
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            for (int i = 0, n = regions.size(); i < n; i++) {
+                Bitmap bitmap = tiles.take(i);
+                if (bitmap == null) return false;
+                canvas.drawBitmap(bitmap, position[2 * i], position[2 * i + 1], paint);
+                recycleTile(bitmap, pool);
+            }
+            Log.d(TAG, "drawInTiles: " + stats);
+            return true;
+        } finally {
+            jc.setCancelListener(null);
+            tiles.abort();
+            for (Future<Void> worker : workers) worker.cancel();
+            for (Future<Void> worker : workers) worker.waitDone();
+            tiles.recycleAll();
+            releaseExportPool(pool, tilePool);
+            jc.setMode(ThreadPool.MODE_CPU);
+        }
+    }
+
+    /**
+     * drawInTiles()的批量版本：把同一个解码器上的多个rects[i]区域分别缩放绘制到
+     * canvases[i]的dests[i]区域。tile按所有rect的外接矩形划分，每个tile只解码一次，
+     * 再绘制到所有和它相交的裁剪中。所有裁剪使用同一个sample
+     *
+     * @return 被取消或者解码失败时返回false
+     */
+    public static boolean drawInTiles(ThreadPool.JobContext jc, BitmapRegionDecoder decoder,
+                                      List<Rect> rects, List<Rect> dests, List<Canvas> canvases,
+                                      int sample, int tileSize, TileBitmapPool tilePool) {
+        int regionSize = tileSize * sample;
+        TileBitmapPool pool = getExportPool(tilePool, tileSize);
+        TileStats stats = new TileStats();
+        Rect bounds = new Rect();
+        for (Rect rect : rects) bounds.union(rect);
+
+        // The canvases take the source coordinates, clipped to the dest.
+        for (int i = 0, n = canvases.size(); i < n; i++) {
+            Canvas canvas = canvases.get(i);
+            Rect rect = rects.get(i);
+            Rect dest = dests.get(i);
+            canvas.save();
+            canvas.clipRect(dest);
+            canvas.translate(dest.left, dest.top);
+            canvas.scale((float) dest.width() / rect.width(),
+                    (float) dest.height() / rect.height());
+            canvas.translate(-rect.left, -rect.top);
+        }
+        try {
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Rect tileRect = new Rect();
+            RectF target = new RectF();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inSampleSize = sample;
+            for (int ty = bounds.top; ty < bounds.bottom; ty += regionSize) {
+                if (jc.isCancelled()) return false;
+                for (int tx = bounds.left; tx < bounds.right; tx += regionSize) {
+                    tileRect.set(tx, ty, tx + regionSize, ty + regionSize);
+                    if (!tileRect.intersect(bounds) || !intersectsAny(rects, tileRect)) {
+                        continue;
+                    }
+                    Bitmap bitmap = decodeTile(decoder, tileRect, options, tileSize, pool, stats);
+                    if (bitmap == null) return false;
+                    target.set(tx, ty, tx + bitmap.getWidth() * sample,
+                            ty + bitmap.getHeight() * sample);
+                    for (int i = 0, n = rects.size(); i < n; i++) {
+                        if (Rect.intersects(rects.get(i), tileRect)) {
+                            canvases.get(i).drawBitmap(bitmap, null, target, paint);
+                        }
+                    }
+                    recycleTile(bitmap, pool);
+                }
+            }
+            Log.d(TAG, "drawInTiles: " + rects.size() + " crops, " + stats);
+            return true;
+        } finally {
+            for (Canvas canvas : canvases) canvas.restore();
+            releaseExportPool(pool, tilePool);
+        }
+    }
+
+    private static boolean intersectsAny(List<Rect> rects, Rect tileRect) {
+        for (Rect rect : rects) {
+            if (Rect.intersects(rect, tileRect)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 导出时每块tile解码后的边长。和tile池的bitmap一样大，完整的tile就可以解码到池里的bitmap中
+     */
+    public static int getExportTileSize(Context context) {
+        TileBitmapPool pool = TileImageView.getTilePool();
+        if (pool != null && pool.isOneSize()) return pool.getWidth();
+        return TileCalibration.getInstance(context).getTileSize();
+    }
+
+    // Returns the pool the full tiles of an export are decoded into, or null.
+    // The tile pool of the viewer is shared if its bitmaps are ARGB_8888 ones
+    // of the size of the tiles. Otherwise the export gets its own pool, so it
+    // neither misses in the viewer pool nor evicts the viewer tiles from it.
+    // Give the result to releaseExportPool() when the export is done.
+    private static TileBitmapPool getExportPool(TileBitmapPool pool, int tileSize) {
+        if (!ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER) return null;
+        if (pool != null && pool.isOneSize()
+                && pool.getWidth() == tileSize && pool.getHeight() == tileSize
+                && TileImageView.getTilePoolConfig() == Bitmap.Config.ARGB_8888) {
+            return pool;
+        }
+        return new TileBitmapPool(tileSize, tileSize,
+                EXPORT_POOL_TILES * 4L * tileSize * tileSize);
+    }
+
+    // Recycles the bitmaps of an export's own pool.
+    private static void releaseExportPool(TileBitmapPool pool, TileBitmapPool tilePool) {
+        if (pool != null && pool != tilePool) pool.clear();
+    }
+
+    // Decodes a tile of an export. A full tile is decoded into a bitmap of the
+    // pool if there is one, the tiles at the right and bottom edges are
+    // smaller and always get a new bitmap.
+    private static Bitmap decodeTile(BitmapRegionDecoder decoder, Rect region,
+                                     BitmapFactory.Options options, int tileSize,
+                                     TileBitmapPool pool, TileStats stats) {
+        Bitmap reuse = null;
+        int regionSize = tileSize * options.inSampleSize;
+        if (pool != null && region.width() == regionSize && region.height() == regionSize) {
+            reuse = pool.getBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+        }
+        Bitmap bitmap = null;
+        options.inBitmap = reuse;
+        try {
+            // To prevent concurrent access in GLThread
+            synchronized (decoder) {
+                bitmap = decoder.decodeRegion(region, options);
+            }
+        } finally {
+            options.inBitmap = null;
+            if (reuse != null && bitmap != reuse) pool.recycle(reuse);
+        }
+        if (bitmap != null) stats.add(bitmap == reuse);
+        return bitmap;
+    }
+
+    // Gives a drawn tile back to the pool, which keeps it if it has the
+    // pooled size and recycles it otherwise.
+    private static void recycleTile(Bitmap bitmap, TileBitmapPool pool) {
+        if (pool != null) {
+            pool.recycle(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    // Counts the tile bitmaps of an export taken from the pool and the ones
+    // allocated by the decoder.
+    private static class TileStats {
+        private int mReused;
+        private int mAllocated;
+
+        synchronized void add(boolean reused) {
+            if (reused) {
+                ++mReused;
+            } else {
+                ++mAllocated;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return (mReused + mAllocated) + " tiles, " + mReused + " reused, "
+                    + mAllocated + " allocated";
+        }
+    }
+
+    // The tiles handed from the decoding workers of drawInTiles() to the
+    // drawing thread, in order. A worker may run at most "window" tiles
+    // ahead of the one being drawn.
+    private static class ParallelTiles {
+        private final Bitmap mBitmaps[];
+        private final boolean mDone[];
+        private final int mWindow;
+        private int mNext;
+        private int mDrawing;
+        private boolean mAborted;
+
+        ParallelTiles(int count, int window) {
+            mBitmaps = new Bitmap[count];
+            mDone = new boolean[count];
+            mWindow = Math.max(1, window);
+        }
+
+        // Returns the index of the next tile to decode, or -1 if there is none.
+        synchronized int next() {
+            while (!mAborted && mNext < mBitmaps.length && mNext - mDrawing >= mWindow) {
+                Utils.waitWithoutInterrupt(this);
+            }
+            if (mAborted || mNext >= mBitmaps.length) return -1;
+            return mNext++;
+        }
+
+        // bitmap is null if the tile cannot be decoded.
+        synchronized void put(int index, Bitmap bitmap) {
+            if (mAborted) {
+                if (bitmap != null) bitmap.recycle();
+                return;
+            }
+            mBitmaps[index] = bitmap;
+            mDone[index] = true;
+            if (bitmap == null) mAborted = true;
+            notifyAll();
+        }
+
+        // Waits for the tile, returns null if the drawing is aborted.
+        synchronized Bitmap take(int index) {
+            mDrawing = index;
+            notifyAll();
+            while (!mAborted && !mDone[index]) {
+                Utils.waitWithoutInterrupt(this);
+            }
+            if (mAborted) return null;
+            Bitmap bitmap = mBitmaps[index];
+            mBitmaps[index] = null;
+            return bitmap;
+        }
+
+        synchronized void abort() {
+            mAborted = true;
+            notifyAll();
+        }
+
+        synchronized void recycleAll() {
+            for (int i = 0; i < mBitmaps.length; i++) {
+                if (mBitmaps[i] != null) {
+                    mBitmaps[i].recycle();
+                    mBitmaps[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 分条解码rect区域并用JpegStreamEncoder直接编码，不需要整张输出图的Bitmap，
+     * 内存占用只和条带大小(输出宽度 x 一行tile的高度)有关。rect被缩放绘制到
+     * 输出图的dest区域，其余部分为黑色
+     *
+     * @return 被取消或者解码失败时返回false
+     */
+    public static boolean drawInStrips(ThreadPool.JobContext jc, BitmapRegionDecoder decoder,
+                                       Rect rect, Rect dest, int outputWidth, int outputHeight,
+                                       int sample, int tileSize, TileBitmapPool tilePool,
+                                       JpegStreamEncoder encoder) throws IOException {
+        Utils.assertTrue(encoder.getWidth() == outputWidth
+                && encoder.getHeight() == outputHeight);
+        int regionSize = tileSize * sample;
+        float scaleX = (float) sample * dest.width() / rect.width();
+        float scaleY = (float) sample * dest.height() / rect.height();
+        // A row of tiles covers at most this many output rows, plus the
+        // partial row carried over from the previous one.
+        int stripHeight = (int) Math.ceil(tileSize * scaleY) + 2;
+        TileBitmapPool tiles = getExportPool(tilePool, tileSize);
+        TileStats stats = new TileStats();
+
+        BitmapPool pool = BitmapPool.getPool(BitmapPool.TYPE_SHARED);
+        Bitmap strip = pool.obtainBitmap(outputWidth, stripHeight, Bitmap.Config.ARGB_8888);
+        int row[] = new int[outputWidth * stripHeight];
+        try {
+            Canvas canvas = new Canvas(strip);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Rect tileRect = new Rect();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inSampleSize = sample;
+
+            // The rows above dest are black.
+            writeBlankRows(encoder, row, outputWidth, dest.top);
+
+            // stripTop is the output row at the top of the strip.
+            int stripTop = dest.top;
+            for (int ty = rect.top, y = 0; ty < rect.bottom; ty += regionSize, y += tileSize) {
+                if (jc.isCancelled()) return false;
+                canvas.setMatrix(null);
+                canvas.translate(dest.left, dest.top - stripTop);
+                canvas.scale(scaleX, scaleY);
+                for (int tx = rect.left, x = 0; tx < rect.right; tx += regionSize, x += tileSize) {
+                    tileRect.set(tx, ty, tx + regionSize, ty + regionSize);
+                    if (!tileRect.intersect(rect)) continue;
+                    Bitmap bitmap = decodeTile(decoder, tileRect, options, tileSize, tiles, stats);
+                    if (bitmap == null) return false;
                     canvas.drawBitmap(bitmap, x, y, paint);
-                    bitmap.recycle();
+                    recycleTile(bitmap, tiles);
                 }
+
+                // The rows above the next row of tiles are complete, the
+                // one it starts in may still be drawn by it.
+                boolean last = ty + regionSize >= rect.bottom;
+                float bottom = dest.top + (y + tileSize) * scaleY;
+                int complete = last ? dest.bottom : Math.min(dest.bottom, (int) bottom);
+                int count = complete - stripTop;
+                strip.getPixels(row, 0, outputWidth, 0, 0, outputWidth, count);
+                encoder.writeRows(row, 0, outputWidth, count);
+
+                int carry = last ? 0 : Math.min(stripHeight - count,
+                        (int) Math.ceil(bottom) - complete);
+                if (carry > 0) {
+                    strip.getPixels(row, 0, outputWidth, 0, count, outputWidth, carry);
+                }
+                strip.eraseColor(0);
+                if (carry > 0) {
+                    strip.setPixels(row, 0, outputWidth, 0, 0, outputWidth, carry);
+                }
+                stripTop = complete;
             }
+
+            // The rows below dest are black.
+            writeBlankRows(encoder, row, outputWidth, outputHeight - dest.bottom);
+            encoder.finish();
+            Log.d(TAG, "drawInStrips: " + stats);
+            return !jc.isCancelled();
+        } finally {
+            pool.recycle(strip);
+            releaseExportPool(tiles, tilePool);
         }
     }
 
+    private static void writeBlankRows(JpegStreamEncoder encoder, int[] row,
+                                       int width, int count) throws IOException {
+        if (count <= 0) return;
+        Arrays.fill(row, 0, width, 0);
+        for (int i = 0; i < count; i++) {
+            encoder.writeRows(row, 0, width, 1);
+        }
+    }
+
+    /**
+     * 用drawInStrips()把裁剪结果保存成JPEG文件，先写到临时文件，完成后再重命名
+     *
+     * @return 保存的文件，失败或被取消时返回null
+     */
+    public static File saveMediaInStrips(ThreadPool.JobContext jc, BitmapRegionDecoder decoder,
+                                         Rect rect, Rect dest, int outputWidth, int outputHeight,
+                                         int sample, int tileSize, TileBitmapPool tilePool,
+                                         String filePath) {
+        File save = new File(filePath);
+        File candidate = new File(filePath + "_temp");
+        boolean saved = false;
+        try {
+            FileOutputStream fos = new FileOutputStream(candidate);
+            try {
+                JpegStreamEncoder encoder = new JpegStreamEncoder(
+                        fos, outputWidth, outputHeight, DEFAULT_COMPRESS_QUALITY);
+                if (!drawInStrips(jc, decoder, rect, dest, outputWidth, outputHeight,
+                        sample, tileSize, tilePool, encoder)) {
+                    return null;
+                }
+            } finally {
+                Utils.closeSilently(fos);
+            }
+            candidate.setReadable(true, false);
+            candidate.setWritable(true, false);
+            if (!candidate.renameTo(save)) {
+                throw new IOException("cannot rename " + candidate);
+            }
+            saved = true;
+        } catch (IOException e) {
+            Log.e(TAG, "fail to save image: " + candidate.getAbsolutePath(), e);
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "out of memory saving " + outputWidth + "x" + outputHeight, e);
+            return null;
+        } finally {
+            // Whatever stopped the save, do not leave a partial file.
+            if (!saved) candidate.delete();
+        }
+        return save;
+    }
+
+    /**
+     * 用JpegCropTranscoder无损裁剪JPEG，不解码像素。rect的左上角必须和MCU对齐。
+     * 先写到临时文件，完成后再重命名，transcoder用完后被关闭
+     *
+     * @return 保存的文件，失败或被取消时返回null
+     */
+    public static File saveJpegLossless(ThreadPool.JobContext jc, JpegCropTranscoder transcoder,
+                                        Rect rect, String filePath) {
+        File save = new File(filePath);
+        File candidate = new File(filePath + "_temp");
+        boolean saved = false;
+        try {
+            FileOutputStream fos = new FileOutputStream(candidate);
+            try {
+                if (!transcoder.transcode(jc, rect, fos)) return null;
+            } finally {
+                Utils.closeSilently(fos);
+            }
+            candidate.setReadable(true, false);
+            candidate.setWritable(true, false);
+            if (!candidate.renameTo(save)) {
+                throw new IOException("cannot rename " + candidate);
+            }
+            saved = true;
+        } catch (IOException e) {
+            Log.e(TAG, "fail to transcode image: " + candidate.getAbsolutePath(), e);
+            return null;
+        } catch (RuntimeException e) {
+            // Corrupt entropy coded data, the caller decodes the image instead.
+            Log.e(TAG, "fail to transcode image: " + candidate.getAbsolutePath(), e);
+            return null;
+        } finally {
+            if (!saved) candidate.delete();
+            transcoder.close();
+        }
+        return save;
+    }
+
     public static File saveMedia(ThreadPool.JobContext jc, Bitmap cropped, String filePath) {
         File save = new File(filePath);
         File candidate = new File(filePath + "_temp");
@@ -241,9 +786,16 @@ public class CropBusiness {
         try {
             FileOutputStream fos = new FileOutputStream(candidate);
             try {
-                saveBitmapToOutputStream(jc, cropped, convertExtensionToCompressFormat(fileExtension), fos);
-                candidate.renameTo(save);
-                candidate.delete();
+                // A cancelled or failed save leaves a partial file, which
+                // must not replace the output.
+                if (!saveBitmapToOutputStream(jc, cropped,
+                        convertExtensionToCompressFormat(fileExtension), fos)) {
+                    candidate.delete();
+                    return null;
+                }
+                if (!candidate.renameTo(save)) {
+                    throw new IOException("cannot rename " + candidate);
+                }
             } finally {
                 fos.close();
             }
@@ -253,26 +805,28 @@ public class CropBusiness {
             return null;
         }
 
-        if (jc.isCancelled()) {
-            candidate.delete();
-            return null;
-        }
-
-        return candidate;
+        return save;
     }
 
     private static boolean saveBitmapToOutputStream(ThreadPool.JobContext jc, Bitmap bitmap, Bitmap.CompressFormat format, OutputStream os) {
         // We wrap the OutputStream so that it can be interrupted.
+        final InterruptableOutputStream ios = new InterruptableOutputStream(os);
+        jc.setCancelListener(new ThreadPool.CancelListener() {
+            @Override
+            public void onCancel() {
+                ios.interrupt();
+            }
+        });
         try {
             if (bitmap != null) {
-                if (!bitmap.compress(format, DEFAULT_COMPRESS_QUALITY, os)) {
+                if (!bitmap.compress(format, DEFAULT_COMPRESS_QUALITY, ios)) {
                     return false;
                 }
             }
             return !jc.isCancelled();
         } finally {
             jc.setCancelListener(null);
-            Utils.closeSilently(os);
+            Utils.closeSilently(ios);
         }
     }
 
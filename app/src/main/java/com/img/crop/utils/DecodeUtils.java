@@ -32,7 +32,7 @@ import com.img.crop.thdpool.ThreadPool.JobContext;
 public class DecodeUtils {
     private static final String TAG = "DecodeUtils";
 
-    private static class DecodeCanceller implements CancelListener {
+    public static class DecodeCanceller implements CancelListener {
         Options mOptions;
 
         public DecodeCanceller(Options options) {
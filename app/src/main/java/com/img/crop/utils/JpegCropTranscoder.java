@@ -0,0 +1,622 @@
+package com.img.crop.utils;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.img.crop.thdpool.ThreadPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/*
+ * Copyright (C) 2017
+ * 版权所有
+ *
+ * 功能描述：JPEG无损裁剪。只做Huffman解码，把裁剪区域内的DCT系数块原样复制到
+ * 新文件中(用标准Huffman表重新编码)，不做反量化和IDCT，没有重新压缩的损失。
+ * 裁剪区域的左上角必须和MCU对齐，见alignRect()。
+ * 支持8位baseline(SOF0/SOF1)的Huffman编码JPEG，progressive和算术编码的返回null。
+ * 作者：huangyong
+ * 创建时间：2018/1/5
+ *
+ * 修改人：
+ * 修改描述：
+ * 修改日期
+ */
+public class JpegCropTranscoder {
+    private static final String TAG = "JpegCropTranscoder";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_COMPONENTS = 4;
+    // The codes up to this length are decoded with one table lookup.
+    private static final int LOOKAHEAD = 9;
+    // The identifier of the APP2 segments holding the ICC profile.
+    private static final byte ICC_PROFILE[] =
+            {'I', 'C', 'C', '_', 'P', 'R', 'O', 'F', 'I', 'L', 'E', 0};
+
+    private final InputStream mIn;
+
+    // The frame, from SOF0 or SOF1.
+    private int mFrameMarker;
+    private int mWidth;
+    private int mHeight;
+    private int mComponentCount;
+    private final int mComponentIds[] = new int[MAX_COMPONENTS];
+    private final int mSamplingH[] = new int[MAX_COMPONENTS];
+    private final int mSamplingV[] = new int[MAX_COMPONENTS];
+    private final int mQuantIds[] = new int[MAX_COMPONENTS];
+    private int mMcuWidth;
+    private int mMcuHeight;
+    private int mRestartInterval;
+
+    // The DQT segments, the Adobe APP14 segment (which tells the color
+    // transform) and the APP2 segments of the ICC profile are copied to the
+    // output as they are.
+    private final ArrayList<byte[]> mQuantSegments = new ArrayList<byte[]>();
+    private byte mAdobeSegment[];
+    private final ArrayList<byte[]> mIccSegments = new ArrayList<byte[]>();
+
+    private final HuffmanTable mDcTables[] = new HuffmanTable[4];
+    private final HuffmanTable mAcTables[] = new HuffmanTable[4];
+    // The tables used by each component in the scan.
+    private final HuffmanTable mScanDc[] = new HuffmanTable[MAX_COMPONENTS];
+    private final HuffmanTable mScanAc[] = new HuffmanTable[MAX_COMPONENTS];
+    private final int mPredictions[] = new int[MAX_COMPONENTS];
+
+    // The entropy coded data being read.
+    private long mBits;
+    private int mBitCount;
+    private int mPendingMarker = -1;
+    private boolean mEndOfStream;
+
+    // The output: [table][symbol] -> code and code length, tables: DC Y,
+    // AC Y, DC C, AC C, the standard tables of JpegStreamEncoder.
+    private OutputStream mOut;
+    private final int mHuffmanCodes[][] = new int[4][256];
+    private final int mHuffmanSizes[][] = new int[4][256];
+    private final int mOutPredictions[] = new int[MAX_COMPONENTS];
+    private int mOutBits;
+    private int mOutBitCount;
+
+    /**
+     * 读取文件头
+     *
+     * @return 不是支持的JPEG时返回null
+     */
+    public static JpegCropTranscoder open(String filePath) {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(filePath), BUFFER_SIZE);
+            JpegCropTranscoder transcoder = open(is);
+            if (transcoder != null) is = null;
+            return transcoder;
+        } catch (Throwable t) {
+            // A broken header, let the caller decode the image instead.
+            Log.w(TAG, "fail to read " + filePath, t);
+            return null;
+        } finally {
+            Utils.closeSilently(is);
+        }
+    }
+
+    // Reads the headers from is. Returns null if the image is not one we can
+    // transcode, is is not closed then.
+    static JpegCropTranscoder open(InputStream is) throws IOException {
+        JpegCropTranscoder transcoder = new JpegCropTranscoder(is);
+        return transcoder.readHeaders() ? transcoder : null;
+    }
+
+    private JpegCropTranscoder(InputStream is) {
+        mIn = is;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public boolean isAligned(Rect rect) {
+        return isAligned(rect.left, rect.top);
+    }
+
+    boolean isAligned(int left, int top) {
+        return left % mMcuWidth == 0 && top % mMcuHeight == 0;
+    }
+
+    /**
+     * 把rect的左上角向左上移到MCU边界，右下角不变
+     */
+    public void alignRect(Rect rect) {
+        rect.left -= rect.left % mMcuWidth;
+        rect.top -= rect.top % mMcuHeight;
+    }
+
+    public void close() {
+        Utils.closeSilently(mIn);
+    }
+
+    /**
+     * 把rect区域写成新的JPEG文件，rect必须和MCU对齐。只能调用一次，不会关闭输出流
+     *
+     * @return 被取消时返回false
+     */
+    public boolean transcode(ThreadPool.JobContext jc, Rect rect, OutputStream os)
+            throws IOException {
+        Utils.assertTrue(isAligned(rect) && rect.left >= 0 && rect.top >= 0
+                && rect.right <= mWidth && rect.bottom <= mHeight && !rect.isEmpty());
+        return transcode(jc, rect.left, rect.top, rect.right, rect.bottom, os);
+    }
+
+    // The crop is checked by the caller.
+    boolean transcode(ThreadPool.JobContext jc, int left, int top, int right, int bottom,
+            OutputStream os) throws IOException {
+        mOut = new BufferedOutputStream(os, BUFFER_SIZE);
+        JpegStreamEncoder.buildHuffmanCodes(JpegStreamEncoder.DC_LUMINANCE_BITS,
+                JpegStreamEncoder.DC_LUMINANCE_VALUES, mHuffmanCodes[0], mHuffmanSizes[0]);
+        JpegStreamEncoder.buildHuffmanCodes(JpegStreamEncoder.AC_LUMINANCE_BITS,
+                JpegStreamEncoder.AC_LUMINANCE_VALUES, mHuffmanCodes[1], mHuffmanSizes[1]);
+        JpegStreamEncoder.buildHuffmanCodes(JpegStreamEncoder.DC_CHROMINANCE_BITS,
+                JpegStreamEncoder.DC_CHROMINANCE_VALUES, mHuffmanCodes[2], mHuffmanSizes[2]);
+        JpegStreamEncoder.buildHuffmanCodes(JpegStreamEncoder.AC_CHROMINANCE_BITS,
+                JpegStreamEncoder.AC_CHROMINANCE_VALUES, mHuffmanCodes[3], mHuffmanSizes[3]);
+        writeHeaders(right - left, bottom - top);
+
+        int mcuColumns = (mWidth + mMcuWidth - 1) / mMcuWidth;
+        int firstColumn = left / mMcuWidth;
+        int lastColumn = (right - 1) / mMcuWidth;
+        int firstRow = top / mMcuHeight;
+        int lastRow = (bottom - 1) / mMcuHeight;
+        // A single component scan has one block per MCU, otherwise each
+        // component has its H x V blocks in every MCU.
+        boolean interleaved = mComponentCount > 1;
+
+        int mcu = 0;
+        for (int row = 0; row <= lastRow; row++) {
+            if (jc.isCancelled()) return false;
+            boolean rowInside = row >= firstRow;
+            for (int column = 0; column < mcuColumns; column++, mcu++) {
+                if (mRestartInterval > 0 && mcu > 0 && mcu % mRestartInterval == 0) {
+                    restart();
+                }
+                boolean inside = rowInside && column >= firstColumn && column <= lastColumn;
+                for (int c = 0; c < mComponentCount; c++) {
+                    int blocks = interleaved ? mSamplingH[c] * mSamplingV[c] : 1;
+                    for (int b = 0; b < blocks; b++) {
+                        transcodeBlock(c, inside);
+                    }
+                }
+                if (mEndOfStream) throw new IOException("truncated image");
+            }
+        }
+
+        // Pad the last byte with 1 bits.
+        if (mOutBitCount > 0) writeBits(0x7F, 7);
+        writeMarker(0xD9);
+        mOut.flush();
+        return true;
+    }
+
+    // Reads the segments up to the start of the scan. Returns false if the
+    // image is not one we can transcode.
+    private boolean readHeaders() throws IOException {
+        if (mIn.read() != 0xFF || mIn.read() != 0xD8) return false;
+        while (true) {
+            int marker = readMarker();
+            switch (marker) {
+                case 0xC0:
+                case 0xC1:
+                    if (!readFrame(marker, readSegment())) return false;
+                    break;
+                case 0xC4:
+                    readHuffmanTables(readSegment());
+                    break;
+                case 0xDB:
+                    mQuantSegments.add(readSegment());
+                    break;
+                case 0xDD: {
+                    byte data[] = readSegment();
+                    mRestartInterval = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+                    break;
+                }
+                case 0xE2: {
+                    // A large profile is split into several segments, keep
+                    // them in order.
+                    byte data[] = readSegment();
+                    if (startsWith(data, ICC_PROFILE)) mIccSegments.add(data);
+                    break;
+                }
+                case 0xEE: {
+                    byte data[] = readSegment();
+                    if (data.length >= 5 && data[0] == 'A' && data[1] == 'd'
+                            && data[2] == 'o' && data[3] == 'b' && data[4] == 'e') {
+                        mAdobeSegment = data;
+                    }
+                    break;
+                }
+                case 0xDA:
+                    return mComponentCount > 0 && readScan(readSegment());
+                case 0xD9:
+                    return false;
+                default:
+                    // Progressive, lossless, hierarchical and arithmetic
+                    // coded frames are not supported.
+                    if (marker >= 0xC2 && marker <= 0xCF) return false;
+                    readSegment();
+                    break;
+            }
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private int readMarker() throws IOException {
+        int b = mIn.read();
+        if (b != 0xFF) throw new IOException("marker expected");
+        do {
+            b = mIn.read();
+        } while (b == 0xFF);
+        if (b < 0) throw new IOException("unexpected end of file");
+        return b;
+    }
+
+    private byte[] readSegment() throws IOException {
+        int length = (mIn.read() << 8) | mIn.read();
+        if (length < 2) throw new IOException("bad segment length");
+        byte data[] = new byte[length - 2];
+        for (int n = 0; n < data.length; ) {
+            int count = mIn.read(data, n, data.length - n);
+            if (count < 0) throw new IOException("unexpected end of file");
+            n += count;
+        }
+        return data;
+    }
+
+    private boolean readFrame(int marker, byte[] data) {
+        int precision = data[0] & 0xFF;
+        mHeight = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+        mWidth = ((data[3] & 0xFF) << 8) | (data[4] & 0xFF);
+        mComponentCount = data[5] & 0xFF;
+        if (precision != 8 || mWidth == 0 || mHeight == 0
+                || mComponentCount < 1 || mComponentCount > MAX_COMPONENTS) {
+            return false;
+        }
+        mFrameMarker = marker;
+        int maxH = 1;
+        int maxV = 1;
+        for (int c = 0; c < mComponentCount; c++) {
+            mComponentIds[c] = data[6 + c * 3] & 0xFF;
+            mSamplingH[c] = (data[7 + c * 3] >> 4) & 0x0F;
+            mSamplingV[c] = data[7 + c * 3] & 0x0F;
+            mQuantIds[c] = data[8 + c * 3] & 0xFF;
+            if (mSamplingH[c] < 1 || mSamplingH[c] > 4
+                    || mSamplingV[c] < 1 || mSamplingV[c] > 4) {
+                return false;
+            }
+            maxH = Math.max(maxH, mSamplingH[c]);
+            maxV = Math.max(maxV, mSamplingV[c]);
+        }
+        if (mComponentCount == 1) {
+            maxH = 1;
+            maxV = 1;
+        }
+        mMcuWidth = 8 * maxH;
+        mMcuHeight = 8 * maxV;
+        return true;
+    }
+
+    private void readHuffmanTables(byte[] data) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int id = data[offset++] & 0xFF;
+            int bits[] = new int[16];
+            int count = 0;
+            for (int i = 0; i < 16; i++) {
+                bits[i] = data[offset++] & 0xFF;
+                count += bits[i];
+            }
+            if (count > 256 || (id & 0x0F) > 3) throw new IOException("bad Huffman table");
+            int values[] = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = data[offset++] & 0xFF;
+            }
+            HuffmanTable table = new HuffmanTable(bits, values);
+            if ((id >> 4) == 0) {
+                mDcTables[id & 0x0F] = table;
+            } else {
+                mAcTables[id & 0x0F] = table;
+            }
+        }
+    }
+
+    // Only a single scan with all the components is supported, which is
+    // what baseline encoders write.
+    private boolean readScan(byte[] data) {
+        int count = data[0] & 0xFF;
+        if (count != mComponentCount) return false;
+        for (int i = 0; i < count; i++) {
+            int id = data[1 + i * 2] & 0xFF;
+            int tables = data[2 + i * 2] & 0xFF;
+            if (id != mComponentIds[i]) return false;
+            mScanDc[i] = mDcTables[(tables >> 4) & 0x03];
+            mScanAc[i] = mAcTables[tables & 0x03];
+            if (mScanDc[i] == null || mScanAc[i] == null) return false;
+        }
+        int start = data[1 + count * 2] & 0xFF;
+        int end = data[2 + count * 2] & 0xFF;
+        int approximation = data[3 + count * 2] & 0xFF;
+        return start == 0 && end == 63 && approximation == 0;
+    }
+
+    private void writeHeaders(int width, int height) throws IOException {
+        writeMarker(0xD8);
+
+        if (mAdobeSegment != null) {
+            writeSegment(0xEE, mAdobeSegment);
+        } else {
+            // APP0: JFIF 1.1, no density, no thumbnail.
+            writeSegment(0xE0, new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        }
+        for (byte[] segment : mIccSegments) {
+            writeSegment(0xE2, segment);
+        }
+        for (byte[] segment : mQuantSegments) {
+            writeSegment(0xDB, segment);
+        }
+
+        writeMarker(mFrameMarker);
+        writeShort(8 + 3 * mComponentCount);
+        mOut.write(8);
+        writeShort(height);
+        writeShort(width);
+        mOut.write(mComponentCount);
+        for (int c = 0; c < mComponentCount; c++) {
+            mOut.write(mComponentIds[c]);
+            mOut.write((mSamplingH[c] << 4) | mSamplingV[c]);
+            mOut.write(mQuantIds[c]);
+        }
+
+        // DHT: the first component uses the luminance tables, the others
+        // the chrominance ones.
+        writeMarker(0xC4);
+        writeShort(2 + 4 * 17 + JpegStreamEncoder.DC_LUMINANCE_VALUES.length
+                + JpegStreamEncoder.AC_LUMINANCE_VALUES.length
+                + JpegStreamEncoder.DC_CHROMINANCE_VALUES.length
+                + JpegStreamEncoder.AC_CHROMINANCE_VALUES.length);
+        writeHuffmanTable(0x00, JpegStreamEncoder.DC_LUMINANCE_BITS,
+                JpegStreamEncoder.DC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x10, JpegStreamEncoder.AC_LUMINANCE_BITS,
+                JpegStreamEncoder.AC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x01, JpegStreamEncoder.DC_CHROMINANCE_BITS,
+                JpegStreamEncoder.DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(0x11, JpegStreamEncoder.AC_CHROMINANCE_BITS,
+                JpegStreamEncoder.AC_CHROMINANCE_VALUES);
+
+        writeMarker(0xDA);
+        writeShort(6 + 2 * mComponentCount);
+        mOut.write(mComponentCount);
+        for (int c = 0; c < mComponentCount; c++) {
+            mOut.write(mComponentIds[c]);
+            mOut.write(c == 0 ? 0x00 : 0x11);
+        }
+        mOut.write(new byte[]{0, 63, 0});
+    }
+
+    private void writeSegment(int marker, byte[] data) throws IOException {
+        writeMarker(marker);
+        writeShort(2 + data.length);
+        mOut.write(data);
+    }
+
+    private void writeHuffmanTable(int id, int[] bits, int[] values) throws IOException {
+        mOut.write(id);
+        for (int b : bits) mOut.write(b);
+        for (int v : values) mOut.write(v);
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        mOut.write(0xFF);
+        mOut.write(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOut.write(value >> 8);
+        mOut.write(value);
+    }
+
+    // Decodes one block of component c, and writes it if it is in the crop.
+    // The coefficients are not stored: each symbol and its extra bits are
+    // written as they are read, only the DC difference is recomputed since
+    // the previous block of the output is a different one.
+    private void transcodeBlock(int c, boolean write) throws IOException {
+        int dcTable = c == 0 ? 0 : 2;
+        int acTable = dcTable + 1;
+
+        int size = decodeSymbol(mScanDc[c]);
+        if (size > 11) throw new IOException("bad DC difference");
+        int diff = 0;
+        if (size > 0) {
+            diff = receiveBits(size);
+            if (diff < (1 << (size - 1))) diff -= (1 << size) - 1;
+        }
+        int dc = mPredictions[c] + diff;
+        mPredictions[c] = dc;
+        if (write) {
+            writeValue(dcTable, dc - mOutPredictions[c]);
+            mOutPredictions[c] = dc;
+        }
+
+        HuffmanTable ac = mScanAc[c];
+        for (int k = 1; k < 64; k++) {
+            int symbol = decodeSymbol(ac);
+            int run = symbol >> 4;
+            size = symbol & 0x0F;
+            if (size == 0) {
+                if (run != 15) {
+                    // End of block
+                    if (write) writeCode(acTable, 0x00);
+                    return;
+                }
+                k += 15;
+                if (write) writeCode(acTable, 0xF0);
+                continue;
+            }
+            k += run;
+            if (k > 63 || size > 10) throw new IOException("bad AC coefficient");
+            int bits = receiveBits(size);
+            if (write) {
+                writeCode(acTable, symbol);
+                writeBits(bits, size);
+            }
+        }
+    }
+
+    // Skips to the restart marker and resets the DC predictions.
+    private void restart() throws IOException {
+        mBitCount = 0;
+        while (mPendingMarker < 0) {
+            int b = mIn.read();
+            if (b < 0) throw new IOException("unexpected end of file");
+            if (b != 0xFF) continue;
+            do {
+                b = mIn.read();
+            } while (b == 0xFF);
+            if (b > 0) mPendingMarker = b;
+        }
+        if (mPendingMarker < 0xD0 || mPendingMarker > 0xD7) {
+            throw new IOException("restart marker expected");
+        }
+        mPendingMarker = -1;
+        for (int c = 0; c < mComponentCount; c++) mPredictions[c] = 0;
+    }
+
+    // Reads bytes until there are more than 24 bits. After a marker or the
+    // end of the file, zeros are read.
+    private void fillBits() throws IOException {
+        while (mBitCount <= 24) {
+            int b = 0;
+            if (mPendingMarker < 0) {
+                b = mIn.read();
+                if (b < 0) {
+                    mEndOfStream = true;
+                    b = 0;
+                } else if (b == 0xFF) {
+                    int next;
+                    do {
+                        next = mIn.read();
+                    } while (next == 0xFF);
+                    if (next != 0) {
+                        // A marker, the entropy coded segment ends here.
+                        if (next < 0) mEndOfStream = true;
+                        mPendingMarker = next;
+                        b = 0;
+                    }
+                }
+            }
+            mBits = (mBits << 8) | b;
+            mBitCount += 8;
+        }
+    }
+
+    private int peekBits(int count) {
+        return (int) (mBits >>> (mBitCount - count)) & ((1 << count) - 1);
+    }
+
+    private int receiveBits(int count) throws IOException {
+        if (mBitCount < count) fillBits();
+        int bits = peekBits(count);
+        mBitCount -= count;
+        return bits;
+    }
+
+    private int decodeSymbol(HuffmanTable table) throws IOException {
+        if (mBitCount < 16) fillBits();
+        int entry = table.mLookup[peekBits(LOOKAHEAD)];
+        if (entry != 0) {
+            mBitCount -= entry >> 8;
+            return entry & 0xFF;
+        }
+        for (int length = LOOKAHEAD + 1; length <= 16; length++) {
+            int code = peekBits(length);
+            if (code <= table.mMaxCode[length]) {
+                mBitCount -= length;
+                return table.mValues[table.mValueOffsets[length] + code];
+            }
+        }
+        throw new IOException("bad Huffman code");
+    }
+
+    // Writes the symbol (0, size of value), followed by the bits of value.
+    private void writeValue(int table, int value) throws IOException {
+        int magnitude = value < 0 ? -value : value;
+        int size = 0;
+        while (magnitude != 0) {
+            size++;
+            magnitude >>= 1;
+        }
+        writeCode(table, size);
+        if (size > 0) {
+            writeBits(value < 0 ? value + (1 << size) - 1 : value, size);
+        }
+    }
+
+    private void writeCode(int table, int symbol) throws IOException {
+        int size = mHuffmanSizes[table][symbol];
+        if (size == 0) throw new IOException("no code for symbol " + symbol);
+        writeBits(mHuffmanCodes[table][symbol], size);
+    }
+
+    private void writeBits(int bits, int count) throws IOException {
+        mOutBits = (mOutBits << count) | (bits & ((1 << count) - 1));
+        mOutBitCount += count;
+        while (mOutBitCount >= 8) {
+            int b = (mOutBits >> (mOutBitCount - 8)) & 0xFF;
+            mOut.write(b);
+            // Byte stuffing
+            if (b == 0xFF) mOut.write(0);
+            mOutBitCount -= 8;
+        }
+    }
+
+    private static class HuffmanTable {
+        // The next LOOKAHEAD bits -> (code length << 8) | symbol, or 0 if
+        // the code is longer.
+        final int mLookup[] = new int[1 << LOOKAHEAD];
+        // The largest code of each length, -1 if there is none, and the
+        // index of the symbol of code 0 of the length.
+        final int mMaxCode[] = new int[17];
+        final int mValueOffsets[] = new int[17];
+        final int mValues[];
+
+        HuffmanTable(int[] bits, int[] values) {
+            mValues = values;
+            int code = 0;
+            for (int length = 1, k = 0; length <= 16; length++) {
+                mValueOffsets[length] = k - code;
+                for (int i = 0; i < bits[length - 1]; i++, k++, code++) {
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        for (int j = 0; j < (1 << shift); j++) {
+                            mLookup[(code << shift) | j] = (length << 8) | values[k];
+                        }
+                    }
+                }
+                mMaxCode[length] = bits[length - 1] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package com.img.crop.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Copyright (C) 2017
+ * 版权所有
+ *
+ * 功能描述：逐行写入的baseline JPEG编码器(YCbCr 4:2:0，标准Huffman表)。
+ * 像素按行分批写入，内部只缓存一个MCU行(16行)，所以编码大图时内存占用
+ * 只和图片宽度有关，不需要整张图的Bitmap。
+ * 作者：huangyong
+ * 创建时间：2018/1/5
+ *
+ * 修改人：
+ * 修改描述：
+ * 修改日期
+ */
+public class JpegStreamEncoder {
+    private static final int MCU_SIZE = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // The natural order index -> the zig-zag order index.
+    static final int ZIGZAG[] = {
+            0, 1, 5, 6, 14, 15, 27, 28,
+            2, 4, 7, 13, 16, 26, 29, 42,
+            3, 8, 12, 17, 25, 30, 41, 43,
+            9, 11, 18, 24, 31, 40, 44, 53,
+            10, 19, 23, 32, 39, 45, 52, 54,
+            20, 22, 33, 38, 46, 51, 55, 60,
+            21, 34, 37, 47, 50, 56, 59, 61,
+            35, 36, 48, 49, 57, 58, 62, 63};
+
+    // The quantization tables of the JPEG spec (Annex K), in natural order.
+    private static final int LUMINANCE_QUANT[] = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+    private static final int CHROMINANCE_QUANT[] = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    // The Huffman tables of the JPEG spec (Annex K): the number of codes of
+    // each length 1..16, followed by the symbols.
+    static final int DC_LUMINANCE_BITS[] = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    static final int DC_LUMINANCE_VALUES[] = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    static final int DC_CHROMINANCE_BITS[] = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    static final int DC_CHROMINANCE_VALUES[] = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    static final int AC_LUMINANCE_BITS[] = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    static final int AC_LUMINANCE_VALUES[] = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+    static final int AC_CHROMINANCE_BITS[] = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    static final int AC_CHROMINANCE_VALUES[] = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+
+    // The scale factors of the AAN forward DCT.
+    private static final double AAN_SCALE[] = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379};
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final int mQuant[][] = new int[2][64];
+    private final float mDivisors[][] = new float[2][64];
+    // [table][symbol] -> code and code length, tables: DC Y, AC Y, DC C, AC C.
+    private final int mHuffmanCodes[][] = new int[4][256];
+    private final int mHuffmanSizes[][] = new int[4][256];
+
+    // One MCU row of pixels, and the number of rows in it.
+    private final int mRows[];
+    private int mBufferedRows;
+    private int mWrittenRows;
+
+    private final float mBlock[] = new float[64];
+    private final int mCoefficients[] = new int[64];
+    private final float mY[] = new float[4 * 64];
+    private final float mCb[] = new float[64];
+    private final float mCr[] = new float[64];
+    private int mDcY;
+    private int mDcCb;
+    private int mDcCr;
+
+    private int mBitBuffer;
+    private int mBitCount;
+    private boolean mFinished;
+
+    /**
+     * 写入文件头，之后用writeRows()按从上到下的顺序写入height行像素
+     *
+     * @param quality 1~100
+     */
+    public JpegStreamEncoder(OutputStream os, int width, int height, int quality)
+            throws IOException {
+        if (width <= 0 || height <= 0 || width >= 65536 || height >= 65536) {
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        }
+        mOut = new BufferedOutputStream(os, BUFFER_SIZE);
+        mWidth = width;
+        mHeight = height;
+        mRows = new int[width * MCU_SIZE];
+        initQuantTables(clamp(quality, 1, 100));
+        initHuffmanTable(0, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        initHuffmanTable(1, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        initHuffmanTable(2, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        initHuffmanTable(3, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+        writeHeaders();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 写入count行ARGB像素(alpha被忽略)，第i行从pixels[offset + i * stride]开始
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int count)
+            throws IOException {
+        if (mWrittenRows + mBufferedRows + count > mHeight) {
+            throw new IllegalStateException("too many rows");
+        }
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(pixels, offset + i * stride,
+                    mRows, mBufferedRows * mWidth, mWidth);
+            if (++mBufferedRows == MCU_SIZE) encodeRows();
+        }
+    }
+
+    public int getWrittenRows() {
+        return mWrittenRows + mBufferedRows;
+    }
+
+    /**
+     * 编码剩下的行并写入文件尾。不会关闭输出流
+     */
+    public void finish() throws IOException {
+        if (mFinished) return;
+        if (getWrittenRows() != mHeight) {
+            throw new IllegalStateException(getWrittenRows() + " of " + mHeight + " rows");
+        }
+        if (mBufferedRows > 0) encodeRows();
+        // Pad the last byte with 1 bits.
+        if (mBitCount > 0) writeBits(0x7F, 7);
+        writeMarker(0xD9);
+        mOut.flush();
+        mFinished = true;
+    }
+
+    private void initQuantTables(int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            mQuant[0][i] = clamp((LUMINANCE_QUANT[i] * scale + 50) / 100, 1, 255);
+            mQuant[1][i] = clamp((CHROMINANCE_QUANT[i] * scale + 50) / 100, 1, 255);
+        }
+        for (int t = 0; t < 2; t++) {
+            for (int row = 0, k = 0; row < 8; row++) {
+                for (int col = 0; col < 8; col++, k++) {
+                    mDivisors[t][k] = (float) (1.0
+                            / (mQuant[t][k] * AAN_SCALE[row] * AAN_SCALE[col] * 8));
+                }
+            }
+        }
+    }
+
+    private void initHuffmanTable(int table, int[] bits, int[] values) {
+        buildHuffmanCodes(bits, values, mHuffmanCodes[table], mHuffmanSizes[table]);
+    }
+
+    // Fills the code and the code length of each symbol of a Huffman table
+    // given as in a DHT segment.
+    static void buildHuffmanCodes(int[] bits, int[] values, int[] codes, int[] sizes) {
+        int code = 0;
+        for (int length = 1, k = 0; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++, k++) {
+                codes[values[k]] = code++;
+                sizes[values[k]] = length;
+            }
+            code <<= 1;
+        }
+    }
+
+    private void writeHeaders() throws IOException {
+        writeMarker(0xD8);
+
+        // APP0: JFIF 1.1, no density, no thumbnail.
+        writeMarker(0xE0);
+        writeShort(16);
+        mOut.write(new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        // DQT: the two tables in zig-zag order.
+        writeMarker(0xDB);
+        writeShort(2 + 2 * 65);
+        for (int t = 0; t < 2; t++) {
+            mOut.write(t);
+            byte table[] = new byte[64];
+            for (int i = 0; i < 64; i++) table[ZIGZAG[i]] = (byte) mQuant[t][i];
+            mOut.write(table);
+        }
+
+        // SOF0: Y sampled 2x2, Cb and Cr 1x1.
+        writeMarker(0xC0);
+        writeShort(8 + 3 * 3);
+        mOut.write(8);
+        writeShort(mHeight);
+        writeShort(mWidth);
+        mOut.write(3);
+        mOut.write(new byte[]{1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        // DHT
+        writeMarker(0xC4);
+        writeShort(2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+                + DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+        writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        // SOS
+        writeMarker(0xDA);
+        writeShort(6 + 2 * 3);
+        mOut.write(3);
+        mOut.write(new byte[]{1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private void writeHuffmanTable(int id, int[] bits, int[] values) throws IOException {
+        mOut.write(id);
+        for (int b : bits) mOut.write(b);
+        for (int v : values) mOut.write(v);
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        mOut.write(0xFF);
+        mOut.write(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOut.write(value >> 8);
+        mOut.write(value);
+    }
+
+    // Encodes the buffered rows as one MCU row. A partial MCU row (the last
+    // one) is padded by repeating its last row, and the right edge by
+    // repeating the last column.
+    private void encodeRows() throws IOException {
+        int rows = mBufferedRows;
+        for (int x = 0; x < mWidth; x += MCU_SIZE) {
+            for (int y = 0; y < MCU_SIZE; y++) {
+                int rowOffset = Math.min(y, rows - 1) * mWidth;
+                for (int i = 0; i < MCU_SIZE; i++) {
+                    int color = mRows[rowOffset + Math.min(x + i, mWidth - 1)];
+                    int r = (color >> 16) & 0xFF;
+                    int g = (color >> 8) & 0xFF;
+                    int b = color & 0xFF;
+                    // Y blocks are stored as 4 consecutive 8x8 blocks.
+                    int block = (y >> 3) * 2 + (i >> 3);
+                    mY[block * 64 + (y & 7) * 8 + (i & 7)] =
+                            0.299f * r + 0.587f * g + 0.114f * b - 128f;
+                    // Cb and Cr are summed over 2x2 pixels, averaged below.
+                    int c = (y >> 1) * 8 + (i >> 1);
+                    if (((y | i) & 1) == 0) {
+                        mCb[c] = 0;
+                        mCr[c] = 0;
+                    }
+                    mCb[c] += -0.16874f * r - 0.33126f * g + 0.5f * b;
+                    mCr[c] += 0.5f * r - 0.41869f * g - 0.08131f * b;
+                }
+            }
+            for (int block = 0; block < 4; block++) {
+                System.arraycopy(mY, block * 64, mBlock, 0, 64);
+                mDcY = encodeBlock(mBlock, 0, mDcY, 0);
+            }
+            for (int i = 0; i < 64; i++) mBlock[i] = mCb[i] * 0.25f;
+            mDcCb = encodeBlock(mBlock, 1, mDcCb, 2);
+            for (int i = 0; i < 64; i++) mBlock[i] = mCr[i] * 0.25f;
+            mDcCr = encodeBlock(mBlock, 1, mDcCr, 2);
+        }
+        mWrittenRows += rows;
+        mBufferedRows = 0;
+    }
+
+    // Transforms, quantizes and writes one block. Returns its DC value for
+    // the prediction of the next block of the component.
+    private int encodeBlock(float[] data, int quant, int lastDc, int huffman)
+            throws IOException {
+        forwardDct(data);
+        float divisors[] = mDivisors[quant];
+        int coefficients[] = mCoefficients;
+        for (int i = 0; i < 64; i++) {
+            coefficients[ZIGZAG[i]] = Math.round(data[i] * divisors[i]);
+        }
+
+        int dc = coefficients[0];
+        writeValue(huffman, 0, dc - lastDc);
+
+        int last = 63;
+        while (last > 0 && coefficients[last] == 0) last--;
+        for (int i = 1; i <= last; i++) {
+            int run = 0;
+            while (coefficients[i] == 0) {
+                run++;
+                i++;
+            }
+            while (run >= 16) {
+                writeCode(huffman + 1, 0xF0);
+                run -= 16;
+            }
+            writeValue(huffman + 1, run, coefficients[i]);
+        }
+        if (last != 63) writeCode(huffman + 1, 0x00);
+        return dc;
+    }
+
+    // Writes the symbol (run, size of value), followed by the bits of value.
+    private void writeValue(int table, int run, int value) throws IOException {
+        int magnitude = value < 0 ? -value : value;
+        int size = 0;
+        while (magnitude != 0) {
+            size++;
+            magnitude >>= 1;
+        }
+        writeCode(table, (run << 4) | size);
+        if (size > 0) {
+            writeBits(value < 0 ? value + (1 << size) - 1 : value, size);
+        }
+    }
+
+    private void writeCode(int table, int symbol) throws IOException {
+        writeBits(mHuffmanCodes[table][symbol], mHuffmanSizes[table][symbol]);
+    }
+
+    private void writeBits(int bits, int count) throws IOException {
+        mBitBuffer = (mBitBuffer << count) | (bits & ((1 << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            int b = (mBitBuffer >> (mBitCount - 8)) & 0xFF;
+            mOut.write(b);
+            // Byte stuffing
+            if (b == 0xFF) mOut.write(0);
+            mBitCount -= 8;
+        }
+    }
+
+    // Not Utils.clamp(), so that the encoder can run in local unit tests.
+    private static int clamp(int x, int min, int max) {
+        if (x > max) return max;
+        if (x < min) return min;
+        return x;
+    }
+
+    // The AAN forward DCT, in place. The output is scaled by the AAN factors,
+    // which are folded into mDivisors.
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int n = 0, p = 0; n < 8; n++, p += next) {
+                float d0 = data[p];
+                float d1 = data[p + step];
+                float d2 = data[p + 2 * step];
+                float d3 = data[p + 3 * step];
+                float d4 = data[p + 4 * step];
+                float d5 = data[p + 5 * step];
+                float d6 = data[p + 6 * step];
+                float d7 = data[p + 7 * step];
+
+                float tmp0 = d0 + d7;
+                float tmp7 = d0 - d7;
+                float tmp1 = d1 + d6;
+                float tmp6 = d1 - d6;
+                float tmp2 = d2 + d5;
+                float tmp5 = d2 - d5;
+                float tmp3 = d3 + d4;
+                float tmp4 = d3 - d4;
+
+                // Even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[p] = tmp10 + tmp11;
+                data[p + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p + 2 * step] = tmp13 + z1;
+                data[p + 6 * step] = tmp13 - z1;
+
+                // Odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[p + 5 * step] = z13 + z2;
+                data[p + 3 * step] = z13 - z2;
+                data[p + step] = z11 + z4;
+                data[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.img.crop.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import com.img.crop.thdpool.ThreadPool;
+
+/*
+ * Copyright (C) 2017
+ * 版权所有
+ *
+ * 功能描述：加载大图（区域解码）。在后台线程中创建BitmapRegionDecoder并解码整张图的
+ * 低分辨率备份图(screennail)，解码之前先把EXIF缩略图作为占位图回调出去。
+ * 作者：huangyong
+ * 创建时间：2018/1/5
+ *
+ * 修改人：
+ * 修改描述：
+ * 修改日期
+ */
+public class LargeImageRequest implements ThreadPool.Job<LargeImageRequest.Result> {
+    @SuppressWarnings("unused")
+    private static final String TAG = "LargeImageRequest";
+
+    public interface PreviewListener {
+        /**
+         * EXIF缩略图解码完成，在后台线程中回调
+         *
+         * @param preview 缩略图
+         * @param width   原图宽度
+         * @param height  原图高度
+         */
+        void onPreviewAvailable(Bitmap preview, int width, int height);
+    }
+
+    public static class Result {
+        public final BitmapRegionDecoder decoder;
+        public final Bitmap screenNail;
+
+        Result(BitmapRegionDecoder decoder, Bitmap screenNail) {
+            this.decoder = decoder;
+            this.screenNail = screenNail;
+        }
+
+        public void recycle() {
+            decoder.recycle();
+            screenNail.recycle();
+        }
+    }
+
+    private final String mLocalFilePath;
+    private final int mBackupPixelCount;
+    private final PreviewListener mPreviewListener;
+
+    public LargeImageRequest(String path, int backupPixelCount, PreviewListener listener) {
+        mLocalFilePath = path;
+        mBackupPixelCount = backupPixelCount;
+        mPreviewListener = listener;
+    }
+
+    @Override
+    public Result run(ThreadPool.JobContext jc) {
+        if (mPreviewListener != null) decodePreview(jc);
+        if (jc.isCancelled()) return null;
+
+        BitmapRegionDecoder decoder =
+                DecodeUtils.createBitmapRegionDecoder(jc, mLocalFilePath, false);
+        if (decoder == null) return null;
+
+        Bitmap screenNail = decodeScreenNail(jc, decoder);
+        if (screenNail == null || jc.isCancelled()) {
+            if (screenNail != null) screenNail.recycle();
+            decoder.recycle();
+            return null;
+        }
+        return new Result(decoder, screenNail);
+    }
+
+    private void decodePreview(ThreadPool.JobContext jc) {
+        byte[] thumbData = LocalImageRequest.getExifThumbnail(mLocalFilePath);
+        if (thumbData == null) return;
+
+        // 原图尺寸只读文件头，不解码像素
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(mLocalFilePath, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0 || jc.isCancelled()) return;
+
+        options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap preview = DecodeUtils.decode(jc, thumbData, options);
+        jc.setCancelListener(null);
+        if (preview == null) return;
+        if (jc.isCancelled()) {
+            preview.recycle();
+            return;
+        }
+        mPreviewListener.onPreviewAvailable(preview, width, height);
+    }
+
+    private Bitmap decodeScreenNail(ThreadPool.JobContext jc, BitmapRegionDecoder decoder) {
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = BitmapUtils.computeSampleSize(
+                width, height, BitmapUtils.UNCONSTRAINED, mBackupPixelCount);
+        jc.setCancelListener(new DecodeUtils.DecodeCanceller(options));
+        try {
+            return decoder.decodeRegion(new Rect(0, 0, width, height), options);
+        } finally {
+            jc.setCancelListener(null);
+        }
+    }
+}
@@ -51,16 +51,7 @@ public class LocalImageRequest implements ThreadPool.Job<Bitmap> {
 
         // try to decode from JPEG EXIF
         if (type == MediaItem.TYPE_MICROTHUMBNAIL) {
-            ExifInterface exif = null;
-            byte[] thumbData = null;
-            try {
-                exif = new ExifInterface(mLocalFilePath);
-                if (exif != null) {
-                    thumbData = exif.getThumbnail();
-                }
-            } catch (Throwable t) {
-                Log.w(TAG, "fail to get exif thumb", t);
-            }
+            byte[] thumbData = getExifThumbnail(mLocalFilePath);
             if (thumbData != null) {
                 Bitmap bitmap = DecodeUtils.decodeIfBigEnough(jc, thumbData, options, targetSize);
                 if (bitmap != null) return bitmap;
@@ -70,6 +61,22 @@ public class LocalImageRequest implements ThreadPool.Job<Bitmap> {
         return DecodeUtils.decodeThumbnail(jc, mLocalFilePath, options, targetSize, type);
     }
 
+    /**
+     * 读取JPEG EXIF中的缩略图数据
+     *
+     * @param path
+     * @return 缩略图数据，没有时返回null
+     */
+    public static byte[] getExifThumbnail(String path) {
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            return exif.getThumbnail();
+        } catch (Throwable t) {
+            Log.w(TAG, "fail to get exif thumb", t);
+            return null;
+        }
+    }
+
     ;
 
 }
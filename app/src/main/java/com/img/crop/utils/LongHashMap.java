@@ -0,0 +1,158 @@
+package com.img.crop.utils;
+
+import java.util.Arrays;
+
+/*
+ * A map from long to Object, used in place of LongSparseArray where the keys
+ * are looked up and removed often. It has the same index based API as
+ * LongSparseArray, but:
+ *
+ * - the entries are kept densely in insertion order (until removed), and
+ *   removeAt(i) moves the last entry into i, so the usual
+ *   "removeAt(i); i--; n--;" loop still visits every entry once.
+ * - get(), put() and remove() find the entry through an open addressing
+ *   hash table of indices with linear probing, instead of a binary search
+ *   and array shifting.
+ */
+public class LongHashMap<E> {
+    private static final int INIT_CAPACITY = 16;
+
+    // The entries, in [0, mSize).
+    private long mKeys[];
+    private Object mValues[];
+    private int mSize;
+
+    // mTable[slot] is the index of the entry plus one, 0 if the slot is
+    // empty. The table is at most half full.
+    private int mTable[];
+    private int mMask;
+
+    public LongHashMap() {
+        this(INIT_CAPACITY);
+    }
+
+    public LongHashMap(int initialCapacity) {
+        int capacity = INIT_CAPACITY;
+        while (capacity < initialCapacity) capacity <<= 1;
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mTable = new int[capacity * 2];
+        mMask = mTable.length - 1;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E valueAt(int index) {
+        return (E) mValues[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long key) {
+        int slot = findSlot(key);
+        return slot < 0 ? null : (E) mValues[mTable[slot] - 1];
+    }
+
+    // Returns the index of the entry with the key, or -1.
+    public int indexOfKey(long key) {
+        int slot = findSlot(key);
+        return slot < 0 ? -1 : mTable[slot] - 1;
+    }
+
+    public void put(long key, E value) {
+        int slot = hash(key) & mMask;
+        while (mTable[slot] != 0) {
+            int index = mTable[slot] - 1;
+            if (mKeys[index] == key) {
+                mValues[index] = value;
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (mSize == mKeys.length) {
+            grow();
+            put(key, value);
+            return;
+        }
+        mKeys[mSize] = key;
+        mValues[mSize] = value;
+        mTable[slot] = ++mSize;
+    }
+
+    public void remove(long key) {
+        int slot = findSlot(key);
+        if (slot >= 0) removeSlot(slot);
+    }
+
+    public void removeAt(int index) {
+        removeSlot(findSlot(mKeys[index]));
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, 0, mSize, null);
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+    }
+
+    private int findSlot(long key) {
+        int slot = hash(key) & mMask;
+        while (mTable[slot] != 0) {
+            if (mKeys[mTable[slot] - 1] == key) return slot;
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private void removeSlot(int slot) {
+        int index = mTable[slot] - 1;
+        int last = mSize - 1;
+
+        // Move the last entry into the hole of the dense arrays.
+        if (index != last) {
+            long lastKey = mKeys[last];
+            mTable[findSlot(lastKey)] = index + 1;
+            mKeys[index] = lastKey;
+            mValues[index] = mValues[last];
+        }
+        mValues[last] = null;
+        mSize = last;
+
+        // Shift the following entries of the probe sequence back, so that
+        // no lookup stops early at the emptied slot.
+        int hole = slot;
+        int next = (slot + 1) & mMask;
+        while (mTable[next] != 0) {
+            int home = hash(mKeys[mTable[next] - 1]) & mMask;
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mTable[hole] = mTable[next];
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mTable[hole] = 0;
+    }
+
+    private void grow() {
+        int capacity = mKeys.length * 2;
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        mTable = new int[capacity * 2];
+        mMask = mTable.length - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = hash(mKeys[i]) & mMask;
+            while (mTable[slot] != 0) slot = (slot + 1) & mMask;
+            mTable[slot] = i + 1;
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
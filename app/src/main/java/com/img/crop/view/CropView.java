@@ -7,6 +7,7 @@ import android.util.AttributeSet;
 
 import com.img.crop.core.BitmapTileProvider;
 import com.img.crop.core.GLCropView;
+import com.img.crop.core.TileCache;
 import com.img.crop.core.TileImageView;
 import com.img.crop.glsrender.gl11.GLRootView;
 
@@ -75,6 +76,10 @@ public class CropView extends GLRootView {
         setDataModel(dataModel, 0);
     }
 
+    public void setTileCache(TileCache cache) {
+        mGLCropView.setTileCache(cache);
+    }
+
     public void setDataModel(TileImageView.Model dataModel, int rotation) {
         mGLCropView.setDataModel(dataModel, rotation);
     }
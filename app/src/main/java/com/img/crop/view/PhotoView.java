@@ -6,6 +6,7 @@ import android.util.AttributeSet;
 
 import com.img.crop.core.BitmapTileProvider;
 import com.img.crop.core.GLImageView;
+import com.img.crop.core.TileCache;
 import com.img.crop.core.TileImageView;
 import com.img.crop.glsrender.gl11.GLRootView;
 
@@ -66,6 +67,10 @@ public class PhotoView extends GLRootView {
         setDataModel(dataModel, 0);
     }
 
+    public void setTileCache(TileCache cache) {
+        mImageView.setTileCache(cache);
+    }
+
     public void setDataModel(TileImageView.Model dataModel, int rotation) {
         mImageView.setDataModel(dataModel, rotation);
     }
@@ -0,0 +1,212 @@
+package com.img.crop.utils;
+
+import com.img.crop.thdpool.ThreadPool;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Crops JPEG files written by ImageIO with JpegCropTranscoder, and checks
+ * that the crop decodes to the same pixels as the region of the source.
+ */
+public class JpegCropTranscoderTest {
+    private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    @Test
+    public void transcode_color_keepsPixels() throws Exception {
+        checkCrops(createImage(333, 251, false), 0);
+    }
+
+    @Test
+    public void transcode_restartInterval_keepsPixels() throws Exception {
+        checkCrops(createImage(333, 251, false), 5);
+    }
+
+    @Test
+    public void transcode_gray_keepsPixels() throws Exception {
+        checkCrops(createImage(201, 150, true), 0);
+    }
+
+    @Test
+    public void transcode_cancelled_returnsFalse() throws Exception {
+        JpegCropTranscoder transcoder = open(encode(createImage(64, 64, false), 0, false));
+        assertNotNull(transcoder);
+        assertFalse(transcoder.transcode(new TestJobContext(true), 0, 0, 64, 64,
+                new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void open_progressive_returnsNull() throws Exception {
+        assertNull(open(encode(createImage(64, 64, false), 0, true)));
+    }
+
+    @Test
+    public void transcode_copiesIccProfile() throws Exception {
+        byte jpeg[] = encode(createImage(64, 64, false), 0, false);
+        byte profile[] = "ICC_PROFILE\0\1\1not a real profile".getBytes("ISO-8859-1");
+        // Insert an APP2 segment after SOI.
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(jpeg, 0, 2);
+        os.write(new byte[]{(byte) 0xFF, (byte) 0xE2, 0, (byte) (profile.length + 2)});
+        os.write(profile);
+        os.write(jpeg, 2, jpeg.length - 2);
+
+        JpegCropTranscoder transcoder = open(os.toByteArray());
+        assertNotNull(transcoder);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(transcoder.transcode(new TestJobContext(false), 16, 16, 48, 48, out));
+        String output = new String(out.toByteArray(), "ISO-8859-1");
+        assertTrue(output.contains(new String(profile, "ISO-8859-1")));
+    }
+
+    @Test
+    public void isAligned_color_usesMcuOf16() throws Exception {
+        // ImageIO subsamples the chroma 2x2, so the MCU is 16x16.
+        JpegCropTranscoder transcoder = open(encode(createImage(100, 100, false), 0, false));
+        assertNotNull(transcoder);
+        assertTrue(transcoder.isAligned(16, 32));
+        assertFalse(transcoder.isAligned(8, 32));
+        assertFalse(transcoder.isAligned(16, 40));
+    }
+
+    @Test
+    public void isAligned_gray_usesMcuOf8() throws Exception {
+        JpegCropTranscoder transcoder = open(encode(createImage(100, 100, true), 0, false));
+        assertNotNull(transcoder);
+        assertTrue(transcoder.isAligned(8, 40));
+        assertFalse(transcoder.isAligned(4, 40));
+    }
+
+    private static void checkCrops(BufferedImage image, int restartInterval) throws Exception {
+        byte jpeg[] = encode(image, restartInterval, false);
+        BufferedImage source = ImageIO.read(new ByteArrayInputStream(jpeg));
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // {left, top, right, bottom}
+        int crops[][] = {
+                {0, 0, width, height},
+                {16, 32, width - 7, height - 20},
+                {48, 16, 81, 57},
+                {width - width % 16 - 16, height - height % 16 - 16, width, height},
+        };
+        for (int[] c : crops) {
+            JpegCropTranscoder transcoder = open(jpeg);
+            assertNotNull(transcoder);
+            assertEquals(width, transcoder.getWidth());
+            assertEquals(height, transcoder.getHeight());
+            assertTrue(transcoder.isAligned(c[0], c[1]));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(transcoder.transcode(new TestJobContext(false),
+                    c[0], c[1], c[2], c[3], out));
+            BufferedImage crop = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            assertSameRegion(source, c, crop);
+        }
+    }
+
+    // The coefficients are the same, so the pixels are too, except near
+    // the edges of the crop where the decoder upsamples the chroma from
+    // different neighbors.
+    private static void assertSameRegion(BufferedImage source, int[] c, BufferedImage crop) {
+        int width = c[2] - c[0];
+        int height = c[3] - c[1];
+        assertEquals(width, crop.getWidth());
+        assertEquals(height, crop.getHeight());
+        for (int y = 2; y < height - 2; y++) {
+            for (int x = 2; x < width - 2; x++) {
+                int expected = source.getRGB(c[0] + x, c[1] + y);
+                int actual = crop.getRGB(x, y);
+                if (expected != actual) {
+                    fail("pixel (" + x + ", " + y + ") of crop (" + c[0] + ", " + c[1]
+                            + ") is " + Integer.toHexString(actual)
+                            + " instead of " + Integer.toHexString(expected));
+                }
+            }
+        }
+    }
+
+    private static JpegCropTranscoder open(byte[] jpeg) throws Exception {
+        return JpegCropTranscoder.open(new ByteArrayInputStream(jpeg));
+    }
+
+    private static BufferedImage createImage(int width, int height, boolean gray) {
+        BufferedImage image = new BufferedImage(width, height,
+                gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = (int) (128 + 100 * Math.sin(x * 0.05) * Math.cos(y * 0.07))
+                        + random.nextInt(20);
+                v = Math.max(0, Math.min(255, v));
+                image.setRGB(x, y, (v << 16) | ((x * 255 / width) << 8) | (y * 255 / height));
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, int restartInterval, boolean progressive)
+            throws Exception {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(os);
+        try {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.9f);
+            if (progressive) param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            IIOMetadata metadata = writer.getDefaultImageMetadata(
+                    new ImageTypeSpecifier(image), param);
+            if (restartInterval > 0) {
+                IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(METADATA_FORMAT);
+                IIOMetadataNode markers = (IIOMetadataNode)
+                        root.getElementsByTagName("markerSequence").item(0);
+                IIOMetadataNode dri = new IIOMetadataNode("dri");
+                dri.setAttribute("interval", String.valueOf(restartInterval));
+                markers.insertBefore(dri, markers.getFirstChild());
+                metadata.setFromTree(METADATA_FORMAT, root);
+            }
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            ios.close();
+            writer.dispose();
+        }
+        return os.toByteArray();
+    }
+
+    private static class TestJobContext implements ThreadPool.JobContext {
+        private final boolean mCancelled;
+
+        TestJobContext(boolean cancelled) {
+            mCancelled = cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public void setCancelListener(ThreadPool.CancelListener listener) {
+        }
+
+        @Override
+        public boolean setMode(int mode) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.img.crop.utils;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes images with JpegStreamEncoder and decodes them with ImageIO.
+ */
+public class JpegStreamEncoderTest {
+    @Test
+    public void roundTrip_decodesToSameImage() throws Exception {
+        // Sizes which are not multiples of the 16x16 MCU too.
+        int sizes[][] = {{1, 1}, {16, 16}, {17, 9}, {33, 50}, {200, 120}};
+        Random random = new Random(1);
+        for (int[] size : sizes) {
+            int pixels[] = createImage(size[0], size[1]);
+            byte jpeg[] = encode(pixels, size[0], size[1], 95, random);
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+            assertNotNull(decoded);
+            assertEquals(size[0], decoded.getWidth());
+            assertEquals(size[1], decoded.getHeight());
+            double error = meanError(pixels, decoded);
+            assertTrue(size[0] + "x" + size[1] + " error " + error, error < 3);
+        }
+    }
+
+    @Test
+    public void lowerQuality_isSmaller() throws Exception {
+        int pixels[] = createImage(96, 64);
+        Random random = new Random(2);
+        byte high[] = encode(pixels, 96, 64, 95, random);
+        byte low[] = encode(pixels, 96, 64, 30, random);
+        assertTrue(low.length < high.length);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(low));
+        assertTrue(meanError(pixels, decoded) < 10);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finish_failsWithMissingRows() throws Exception {
+        JpegStreamEncoder encoder =
+                new JpegStreamEncoder(new ByteArrayOutputStream(), 8, 8, 90);
+        encoder.writeRows(new int[8 * 4], 0, 8, 4);
+        encoder.finish();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void writeRows_failsWithTooManyRows() throws Exception {
+        JpegStreamEncoder encoder =
+                new JpegStreamEncoder(new ByteArrayOutputStream(), 8, 8, 90);
+        encoder.writeRows(new int[8 * 9], 0, 8, 9);
+    }
+
+    // A smooth image with some colors, the kind of content JPEG is made for.
+    private static int[] createImage(int width, int height) {
+        int pixels[] = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 255 * x / Math.max(1, width - 1);
+                int g = 255 * y / Math.max(1, height - 1);
+                int b = (int) (127.5 + 127.5 * Math.sin((x + y) / 10.0));
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    // Writes the rows in batches of random sizes, as the strips are.
+    private static byte[] encode(int[] pixels, int width, int height, int quality,
+                                 Random random) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        JpegStreamEncoder encoder = new JpegStreamEncoder(os, width, height, quality);
+        for (int y = 0; y < height; ) {
+            int count = Math.min(height - y, 1 + random.nextInt(40));
+            encoder.writeRows(pixels, y * width, width, count);
+            y += count;
+        }
+        assertEquals(height, encoder.getWrittenRows());
+        encoder.finish();
+        return os.toByteArray();
+    }
+
+    private static double meanError(int[] pixels, BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long sum = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = pixels[y * width + x];
+                int actual = image.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    sum += Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+                }
+            }
+        }
+        return (double) sum / (width * height * 3);
+    }
+}
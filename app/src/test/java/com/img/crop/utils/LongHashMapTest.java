@@ -0,0 +1,101 @@
+package com.img.crop.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs random operations on a LongHashMap and a HashMap, and checks that
+ * they always hold the same entries.
+ */
+public class LongHashMapTest {
+    private static final int OPERATIONS = 200000;
+
+    @Test
+    public void randomOperations_matchHashMap() throws Exception {
+        // Few keys, so that the keys are often removed and put again.
+        runRandomOperations(new Random(1), 64);
+        runRandomOperations(new Random(2), 4096);
+    }
+
+    @Test
+    public void collidingKeys_matchHashMap() throws Exception {
+        // The tile keys differ in the high bits only, like these ones.
+        Random random = new Random(3);
+        LongHashMap<Long> map = new LongHashMap<Long>(4);
+        HashMap<Long, Long> expected = new HashMap<Long, Long>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            long key = (long) random.nextInt(256) << 32;
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+                expected.remove(key);
+            } else {
+                map.put(key, (long) i);
+                expected.put(key, (long) i);
+            }
+            if (i % 1000 == 0) assertSameEntries(expected, map);
+        }
+        assertSameEntries(expected, map);
+    }
+
+    @Test
+    public void clear_removesAllEntries() throws Exception {
+        LongHashMap<String> map = new LongHashMap<String>();
+        for (long key = 0; key < 100; key++) map.put(key, "v" + key);
+        map.clear();
+        assertEquals(0, map.size());
+        for (long key = 0; key < 100; key++) {
+            assertNull(map.get(key));
+            assertEquals(-1, map.indexOfKey(key));
+        }
+        map.put(7, "seven");
+        assertEquals(1, map.size());
+        assertEquals("seven", map.get(7));
+    }
+
+    private static void runRandomOperations(Random random, int keyRange) {
+        LongHashMap<Integer> map = new LongHashMap<Integer>();
+        HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            long key = random.nextInt(keyRange) - keyRange / 2;
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    map.put(key, i);
+                    expected.put(key, i);
+                    break;
+                case 2:
+                    map.remove(key);
+                    expected.remove(key);
+                    break;
+                case 3:
+                    if (map.size() > 0) {
+                        int index = random.nextInt(map.size());
+                        assertNotNull(expected.remove(map.keyAt(index)));
+                        map.removeAt(index);
+                    }
+                    break;
+            }
+            assertEquals(expected.get(key), map.get(key));
+            if (i % 1000 == 0) assertSameEntries(expected, map);
+        }
+        assertSameEntries(expected, map);
+    }
+
+    private static <E> void assertSameEntries(Map<Long, E> expected, LongHashMap<E> map) {
+        assertEquals(expected.size(), map.size());
+        HashMap<Long, E> entries = new HashMap<Long, E>();
+        for (int i = 0; i < map.size(); i++) {
+            assertEquals(i, map.indexOfKey(map.keyAt(i)));
+            assertNull("duplicate key " + map.keyAt(i), entries.put(map.keyAt(i), map.valueAt(i)));
+        }
+        assertEquals(expected, entries);
+        for (Map.Entry<Long, E> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+}